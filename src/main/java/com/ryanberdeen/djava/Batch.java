@@ -0,0 +1,149 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/** Remote invocations recorded by {@link DJavaConnection#batch(Runnable)} and sent in a single message.
+ * Results are available, in the order the invocations were made, once the batch has been sent.
+ * @author rberdeen
+ *
+ */
+public class Batch {
+	private ArrayList<RemoteInvocation> invocations = new ArrayList<RemoteInvocation>();
+	private Object[] results;
+	private Throwable[] throwables;
+	private boolean asynchronous;
+	private CallContext callContext;
+
+	/** Maps from index to the future returned in place of the invocation's result while the batch was recorded. */
+	private HashMap<Integer, CompletableFuture<Object>> resultFutures = new HashMap<Integer, CompletableFuture<Object>>();
+
+	Batch(boolean asynchronous) {
+		this.asynchronous = asynchronous;
+	}
+
+	/** Creates a batch of invocations that have already been made.
+	 * @param callContext the call chain the invocations were made in, or null if they were made outside of one
+	 */
+	Batch(boolean asynchronous, ArrayList<RemoteInvocation> invocations, CallContext callContext) {
+		this.asynchronous = asynchronous;
+		this.invocations = invocations;
+		this.callContext = callContext;
+	}
+
+	/** Records an invocation. Returns the index of its result. */
+	int add(RemoteInvocation invocation) {
+		invocations.add(invocation);
+		return invocations.size() - 1;
+	}
+
+	public List<RemoteInvocation> getInvocations() {
+		return invocations;
+	}
+
+	/** Returns true if no results are needed for the batch.
+	 * Asynchronous batches are sent without waiting for a response, and the peer does not send one.
+	 */
+	public boolean isAsynchronous() {
+		return asynchronous;
+	}
+
+	/** Returns the call chain the invocations were made in, for a batch of invocations that have already been made.
+	 * A batch recorded by {@link DJavaConnection#batch(Runnable)} is sent by the thread that made the invocations, in its
+	 * current chain, so this returns null.
+	 */
+	public CallContext getCallContext() {
+		return callContext;
+	}
+
+	/** Returns the earliest deadline of the invocations in the batch. */
+	public long getDeadline() {
+		long deadline = Deadline.NONE;
+		for (RemoteInvocation invocation : invocations) {
+			deadline = Math.min(deadline, invocation.getDeadline());
+		}
+		return deadline;
+	}
+
+	public int size() {
+		return invocations.size();
+	}
+
+	/** Returns the result of an invocation.
+	 * @param index the index of the invocation in the batch
+	 * @throws Throwable the exception thrown by the invocation
+	 */
+	public Object getResult(int index) throws Throwable {
+		if (throwables[index] != null) {
+			throw throwables[index];
+		}
+		return results[index];
+	}
+
+	/** Sets the result of an invocation. Called by the connection when the response arrives. */
+	public void setResult(int index, Object result) {
+		results[index] = result;
+	}
+
+	/** Sets the exception thrown by an invocation. Called by the connection when the response arrives. */
+	public void setThrowable(int index, Throwable throwable) {
+		throwables[index] = throwable;
+	}
+
+	/** Returns a future for the result of an invocation, which is completed once the batch has been sent. */
+	CompletableFuture<Object> getResultFuture(int index) {
+		CompletableFuture<Object> result = resultFutures.get(index);
+		if (result == null) {
+			result = new CompletableFuture<Object>();
+			resultFutures.put(index, result);
+		}
+		return result;
+	}
+
+	/** Completes the futures for the results with the results that have been set. */
+	void completeResultFutures() {
+		for (Map.Entry<Integer, CompletableFuture<Object>> entry : resultFutures.entrySet()) {
+			int index = entry.getKey();
+			if (throwables[index] != null) {
+				entry.getValue().completeExceptionally(throwables[index]);
+			}
+			else {
+				entry.getValue().complete(results[index]);
+			}
+		}
+	}
+
+	/** Fails the futures for the results, because the batch could not be sent. */
+	void failResultFutures(Throwable throwable) {
+		for (CompletableFuture<Object> resultFuture : resultFutures.values()) {
+			resultFuture.completeExceptionally(throwable);
+		}
+	}
+
+	void prepareResults() {
+		results = new Object[invocations.size()];
+		throwables = new Throwable[invocations.size()];
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/** Invocation handler for the result of a call recorded in a batch.
+ * Once the batch has been sent, calls are made on the result. Before then, the result isn't known, so calls fail.
+ */
+class BatchResultInvocationHandler implements InvocationHandler {
+	private String methodName;
+	private CompletableFuture<Object> result;
+
+	public BatchResultInvocationHandler(String methodName, CompletableFuture<Object> result) {
+		this.methodName = methodName;
+		this.result = result;
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (!result.isDone()) {
+			throw new IllegalStateException("The result of '" + methodName + "' is not available until the batch has been sent");
+		}
+
+		try {
+			return method.invoke(getResult(), args);
+		}
+		catch (InvocationTargetException ex) {
+			throw ex.getCause();
+		}
+	}
+
+	private Object getResult() throws Throwable {
+		try {
+			Object value = result.get();
+			if (value == null) {
+				throw new NullPointerException("The result of '" + methodName + "' is null");
+			}
+			return value;
+		}
+		catch (ExecutionException ex) {
+			throw ex.getCause();
+		}
+	}
+}
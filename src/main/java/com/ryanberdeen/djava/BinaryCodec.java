@@ -0,0 +1,407 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Array;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Compact codec for the values dJava sends most often.
+ * Primitives, boxed primitives, strings, enums, arrays, remote object references and object descriptors are written with
+ * a one byte tag and no class descriptors. Any other object is written using Java serialization, as are arrays of objects
+ * that contain arrays, which may share elements or contain themselves.
+ */
+public class BinaryCodec implements Codec {
+	public static final String CONTENT_TYPE = "application/x-djava-binary";
+
+	private static final byte NULL = 0;
+	private static final byte TRUE = 1;
+	private static final byte FALSE = 2;
+	private static final byte BYTE = 3;
+	private static final byte SHORT = 4;
+	private static final byte CHAR = 5;
+	private static final byte INT = 6;
+	private static final byte LONG = 7;
+	private static final byte FLOAT = 8;
+	private static final byte DOUBLE = 9;
+	private static final byte STRING = 10;
+	private static final byte ENUM = 11;
+	private static final byte ARRAY = 12;
+	private static final byte REMOTE_OBJECT_REFERENCE = 13;
+	private static final byte OBJECT_DESCRIPTOR = 14;
+	private static final byte SERIALIZED = 15;
+
+	/** An object descriptor followed by its prefetched values. Descriptors without values keep the shorter form. */
+	private static final byte PREFETCHED_OBJECT_DESCRIPTOR = 16;
+
+	private static final String CHARSET = "UTF-8";
+
+	public String getContentType() {
+		return CONTENT_TYPE;
+	}
+
+	public ObjectOutput createOutput(OutputStream out) throws IOException {
+		return new Output(out);
+	}
+
+	public ObjectInput createInput(InputStream in) throws IOException {
+		return new Input(in);
+	}
+
+	static class Output extends DataOutputStream implements ObjectOutput {
+		public Output(OutputStream out) {
+			super(out);
+		}
+
+		public void writeObject(Object object) throws IOException {
+			if (object == null) {
+				writeByte(NULL);
+			}
+			else if (object instanceof Boolean) {
+				writeByte((Boolean) object ? TRUE : FALSE);
+			}
+			else if (object instanceof Byte) {
+				writeByte(BYTE);
+				writeByte((Byte) object);
+			}
+			else if (object instanceof Short) {
+				writeByte(SHORT);
+				writeShort((Short) object);
+			}
+			else if (object instanceof Character) {
+				writeByte(CHAR);
+				writeChar((Character) object);
+			}
+			else if (object instanceof Integer) {
+				writeByte(INT);
+				writeVarLong((Integer) object);
+			}
+			else if (object instanceof Long) {
+				writeByte(LONG);
+				writeVarLong((Long) object);
+			}
+			else if (object instanceof Float) {
+				writeByte(FLOAT);
+				writeFloat((Float) object);
+			}
+			else if (object instanceof Double) {
+				writeByte(DOUBLE);
+				writeDouble((Double) object);
+			}
+			else if (object instanceof String) {
+				writeByte(STRING);
+				writeString((String) object);
+			}
+			else if (object instanceof Enum) {
+				writeByte(ENUM);
+				writeString(((Enum<?>) object).getDeclaringClass().getName());
+				writeString(((Enum<?>) object).name());
+			}
+			else if (object.getClass().isArray() && !containsArray(object)) {
+				writeByte(ARRAY);
+				writeArray(object);
+			}
+			else if (object.getClass() == ObjectDescriptor.class) {
+				ObjectDescriptor objectDescriptor = (ObjectDescriptor) object;
+				HashMap<String, Serializable> prefetchedValues = objectDescriptor.getPrefetchedValues();
+				writeByte(prefetchedValues != null ? PREFETCHED_OBJECT_DESCRIPTOR : OBJECT_DESCRIPTOR);
+				writeVarLong(objectDescriptor.getId());
+				writeLong(objectDescriptor.getMethodTableFingerprint());
+				Class<?>[] proxiedClasses = objectDescriptor.getProxiedClasses();
+				writeVarLong(proxiedClasses.length);
+				for (Class<?> proxiedClass : proxiedClasses) {
+					writeString(proxiedClass.getName());
+				}
+				if (prefetchedValues != null) {
+					writeVarLong(prefetchedValues.size());
+					for (Map.Entry<String, Serializable> entry : prefetchedValues.entrySet()) {
+						writeString(entry.getKey());
+						writeObject(entry.getValue());
+					}
+				}
+			}
+			else if (object.getClass() == RemoteObjectReference.class) {
+				writeByte(REMOTE_OBJECT_REFERENCE);
+				writeVarLong(((RemoteObjectReference) object).getId());
+			}
+			else {
+				writeByte(SERIALIZED);
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream out = new ObjectOutputStream(bytes);
+				out.writeObject(object);
+				out.close();
+				writeVarLong(bytes.size());
+				bytes.writeTo(this);
+			}
+		}
+
+		/** Returns true if an array has elements that are arrays. Such arrays are serialized, as only serialization
+		 * keeps track of the arrays it has already written.
+		 */
+		private boolean containsArray(Object array) {
+			if (array.getClass().getComponentType().isPrimitive()) {
+				return false;
+			}
+			for (Object value : (Object[]) array) {
+				if (value != null && value.getClass().isArray()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void writeArray(Object array) throws IOException {
+			Class<?> componentType = array.getClass().getComponentType();
+			int length = Array.getLength(array);
+			writeString(array.getClass().getName());
+			writeVarLong(length);
+
+			if (componentType == int.class) {
+				for (int value : (int[]) array) {
+					writeVarLong(value);
+				}
+			}
+			else if (componentType == long.class) {
+				for (long value : (long[]) array) {
+					writeVarLong(value);
+				}
+			}
+			else if (componentType == byte.class) {
+				write((byte[]) array);
+			}
+			else if (componentType == boolean.class) {
+				for (boolean value : (boolean[]) array) {
+					writeBoolean(value);
+				}
+			}
+			else if (componentType == short.class) {
+				for (short value : (short[]) array) {
+					writeShort(value);
+				}
+			}
+			else if (componentType == char.class) {
+				for (char value : (char[]) array) {
+					writeChar(value);
+				}
+			}
+			else if (componentType == float.class) {
+				for (float value : (float[]) array) {
+					writeFloat(value);
+				}
+			}
+			else if (componentType == double.class) {
+				for (double value : (double[]) array) {
+					writeDouble(value);
+				}
+			}
+			else {
+				for (Object value : (Object[]) array) {
+					writeObject(value);
+				}
+			}
+		}
+
+		private void writeString(String value) throws IOException {
+			byte[] bytes = value.getBytes(CHARSET);
+			writeVarLong(bytes.length);
+			write(bytes);
+		}
+
+		/** Writes a zigzag encoded variable length integer, using one byte for small values of either sign. */
+		private void writeVarLong(long value) throws IOException {
+			long zigzag = (value << 1) ^ (value >> 63);
+			while ((zigzag & ~0x7FL) != 0) {
+				writeByte((int) ((zigzag & 0x7F) | 0x80));
+				zigzag >>>= 7;
+			}
+			writeByte((int) zigzag);
+		}
+	}
+
+	static class Input extends DataInputStream implements ObjectInput {
+		public Input(InputStream in) {
+			super(in);
+		}
+
+		@SuppressWarnings("unchecked")
+		public Object readObject() throws ClassNotFoundException, IOException {
+			byte tag = readByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case BYTE:
+				return readByte();
+			case SHORT:
+				return readShort();
+			case CHAR:
+				return readChar();
+			case INT:
+				return (int) readVarLong();
+			case LONG:
+				return readVarLong();
+			case FLOAT:
+				return readFloat();
+			case DOUBLE:
+				return readDouble();
+			case STRING:
+				return readString();
+			case ENUM:
+				Class<?> enumClass = ClassResolver.forName(readString());
+				if (!enumClass.isEnum()) {
+					throw new InvalidClassException(enumClass.getName(), "not an enum");
+				}
+				return Enum.valueOf((Class) enumClass, readString());
+			case ARRAY:
+				return readArray();
+			case OBJECT_DESCRIPTOR:
+			case PREFETCHED_OBJECT_DESCRIPTOR:
+				long id = readVarLong();
+				long methodTableFingerprint = readLong();
+				Class<?>[] proxiedClasses = new Class[(int) readVarLong()];
+				for (int i = 0; i < proxiedClasses.length; i++) {
+					proxiedClasses[i] = ClassResolver.forName(readString());
+				}
+				ObjectDescriptor objectDescriptor = new ObjectDescriptor(proxiedClasses, id, methodTableFingerprint);
+				if (tag == PREFETCHED_OBJECT_DESCRIPTOR) {
+					int count = (int) readVarLong();
+					HashMap<String, Serializable> prefetchedValues = new HashMap<String, Serializable>(count * 2);
+					for (int i = 0; i < count; i++) {
+						String methodName = readString();
+						prefetchedValues.put(methodName, (Serializable) readObject());
+					}
+					objectDescriptor = objectDescriptor.withPrefetchedValues(prefetchedValues);
+				}
+				return objectDescriptor;
+			case REMOTE_OBJECT_REFERENCE:
+				return new RemoteObjectReference(readVarLong());
+			case SERIALIZED:
+				byte[] bytes = new byte[(int) readVarLong()];
+				readFully(bytes);
+				ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+				return in.readObject();
+			default:
+				throw new StreamCorruptedException("unknown tag " + tag);
+			}
+		}
+
+		private Object readArray() throws ClassNotFoundException, IOException {
+			Class<?> componentType = ClassResolver.forName(readString()).getComponentType();
+			int length = (int) readVarLong();
+
+			if (componentType == int.class) {
+				int[] result = new int[length];
+				for (int i = 0; i < length; i++) {
+					result[i] = (int) readVarLong();
+				}
+				return result;
+			}
+			else if (componentType == long.class) {
+				long[] result = new long[length];
+				for (int i = 0; i < length; i++) {
+					result[i] = readVarLong();
+				}
+				return result;
+			}
+			else if (componentType == byte.class) {
+				byte[] result = new byte[length];
+				readFully(result);
+				return result;
+			}
+			else if (componentType == boolean.class) {
+				boolean[] result = new boolean[length];
+				for (int i = 0; i < length; i++) {
+					result[i] = readBoolean();
+				}
+				return result;
+			}
+			else if (componentType == short.class) {
+				short[] result = new short[length];
+				for (int i = 0; i < length; i++) {
+					result[i] = readShort();
+				}
+				return result;
+			}
+			else if (componentType == char.class) {
+				char[] result = new char[length];
+				for (int i = 0; i < length; i++) {
+					result[i] = readChar();
+				}
+				return result;
+			}
+			else if (componentType == float.class) {
+				float[] result = new float[length];
+				for (int i = 0; i < length; i++) {
+					result[i] = readFloat();
+				}
+				return result;
+			}
+			else if (componentType == double.class) {
+				double[] result = new double[length];
+				for (int i = 0; i < length; i++) {
+					result[i] = readDouble();
+				}
+				return result;
+			}
+			else {
+				Object[] result = (Object[]) Array.newInstance(componentType, length);
+				for (int i = 0; i < length; i++) {
+					result[i] = readObject();
+				}
+				return result;
+			}
+		}
+
+		private String readString() throws IOException {
+			byte[] bytes = new byte[(int) readVarLong()];
+			readFully(bytes);
+			return new String(bytes, CHARSET);
+		}
+
+		private long readVarLong() throws IOException {
+			long zigzag = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = readByte();
+				zigzag |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return (zigzag >>> 1) ^ -(zigzag & 1);
+				}
+			}
+			throw new StreamCorruptedException("malformed variable length integer");
+		}
+	}
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Indicates that a value should be sent as a serialized copy, rather than as a reference to a remote object.
+ * May be applied to a method, for its result, to a parameter, or to a class, for all its instances. The value must be
+ * serializable.
+ * <p>
+ * Values are also sent by copy, without the annotation, if they are strings, enums or boxed primitives, or if they are
+ * serializable and the declared type is a class other than Object, for which no proxy could be made.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.PARAMETER, ElementType.TYPE})
+public @interface ByValue {
+
+}
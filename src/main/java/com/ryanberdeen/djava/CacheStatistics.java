@@ -0,0 +1,68 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+/** A snapshot of the counters of a connection's result cache.
+ * @see Cacheable
+ */
+public class CacheStatistics {
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+	private int size;
+
+	CacheStatistics(long hitCount, long missCount, long evictionCount, int size) {
+		this.hitCount = hitCount;
+		this.missCount = missCount;
+		this.evictionCount = evictionCount;
+		this.size = size;
+	}
+
+	/** Returns the number of calls answered from the cache. */
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	/** Returns the number of cacheable calls that were invoked remotely, including those whose result had expired. */
+	public long getMissCount() {
+		return missCount;
+	}
+
+	/** Returns the number of results discarded to make room for others. */
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/** Returns the number of results in the cache. */
+	public int getSize() {
+		return size;
+	}
+
+	/** Returns the fraction of cacheable calls answered from the cache, or 0 if there have been none. */
+	public double getHitRate() {
+		long requestCount = hitCount + missCount;
+		return requestCount > 0 ? (double) hitCount / requestCount : 0;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStatistics[hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount + ", size=" + size + "]";
+	}
+}
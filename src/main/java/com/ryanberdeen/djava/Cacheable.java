@@ -0,0 +1,40 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Indicates that the results of a remote method may be reused instead of invoking it again with the same arguments.
+ * Results are kept by the calling connection for each remote object, method and arguments, until they expire, are
+ * evicted to make room for others, or are invalidated with {@link DJavaConnection#invalidateCachedResults(Object)} or
+ * by the peer with {@link DJavaConnection#invalidatePeerCachedResults(Object)}. Calls that throw are not cached.
+ * <p>
+ * Calls are only cached when every argument is passed by value. The same result object is returned to every caller,
+ * so results should not be modified.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Cacheable {
+	/** How long a result may be reused, in milliseconds, or 0 to keep it until it is evicted or invalidated. */
+	long ttl();
+}
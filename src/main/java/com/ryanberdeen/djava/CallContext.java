@@ -0,0 +1,118 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.security.SecureRandom;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A logical chain of calls between peers, such as a call and the callbacks made while performing it.
+ * Each request carries the id of its chain. An incoming request is performed by the thread waiting on a call in the
+ * same chain, if there is one, and otherwise dispatched as usual and performed in the chain. Chains are identified by
+ * id rather than by thread, so a callback reaches the waiting caller whichever thread makes it.
+ * <p>
+ * Incoming invocations are performed in their chain. Work continued on another thread, such as a dependent stage of a
+ * future, leaves the chain unless it is run with {@link #wrap(Runnable)} or {@link #wrap(Executor)}.
+ */
+public class CallContext {
+	private static ThreadLocal<CallContext> current = new ThreadLocal<CallContext>();
+
+	/** Ids start at a random value, so that chains started by different peers don't collide. */
+	private static AtomicLong nextId = new AtomicLong(new SecureRandom().nextLong());
+
+	private long id;
+
+	private CallContext(long id) {
+		this.id = id;
+	}
+
+	/** Returns the context with an id received from a peer. */
+	public static CallContext forId(long id) {
+		return new CallContext(id);
+	}
+
+	/** Returns a context for a new chain. */
+	static CallContext create() {
+		return new CallContext(nextId.getAndIncrement());
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	/** Returns the chain the current thread is working in, or null if there is none. */
+	public static CallContext current() {
+		return current.get();
+	}
+
+	/** Makes a context current, and returns the one it replaces. */
+	static CallContext enter(CallContext callContext) {
+		CallContext outer = current.get();
+		restore(callContext);
+		return outer;
+	}
+
+	/** Makes a context that was replaced by {@link #enter(CallContext)} current again. */
+	static void restore(CallContext callContext) {
+		if (callContext != null) {
+			current.set(callContext);
+		}
+		else {
+			current.remove();
+		}
+	}
+
+	/** Returns a runnable that runs in the current chain, whichever thread runs it. */
+	public static Runnable wrap(final Runnable runnable) {
+		final CallContext callContext = current();
+		return new Runnable() {
+			public void run() {
+				CallContext outer = enter(callContext);
+				try {
+					runnable.run();
+				}
+				finally {
+					restore(outer);
+				}
+			}
+		};
+	}
+
+	/** Returns an executor that runs tasks in the chain they are submitted from. Useful for the dependent stages of
+	 * futures whose callbacks call the peer.
+	 */
+	public static Executor wrap(final Executor executor) {
+		return new Executor() {
+			public void execute(Runnable command) {
+				executor.execute(wrap(command));
+			}
+		};
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof CallContext && ((CallContext) obj).id == id;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (id ^ (id >>> 32));
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/** Identifies a remote call by its target, method and arguments, so that equal calls can share a result.
+ * The arguments must be passed by value. They are serialized into the key, so that changes the caller makes to them
+ * afterwards don't change the key, and calls share a result when their arguments serialize to the same bytes.
+ */
+class CallKey {
+	private long targetId;
+	private Method method;
+	private byte[] arguments;
+	private int hashCode;
+
+	public CallKey(long targetId, Method method, Object[] arguments) throws IOException {
+		this.targetId = targetId;
+		this.method = method;
+		this.arguments = serialize(arguments);
+		hashCode = (Long.hashCode(targetId) * 31 + method.hashCode()) * 31 + Arrays.hashCode(this.arguments);
+	}
+
+	public CallKey(RemoteInvocation invocation) throws IOException {
+		this(invocation.getTargetId(), invocation.getMethod(), invocation.getArguments());
+	}
+
+	private static byte[] serialize(Object[] arguments) throws IOException {
+		if (arguments == null || arguments.length == 0) {
+			return new byte[0];
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		for (Object argument : arguments) {
+			out.writeObject(argument);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	public long getTargetId() {
+		return targetId;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof CallKey)) {
+			return false;
+		}
+		CallKey that = (CallKey) obj;
+		return targetId == that.targetId && method.equals(that.method) && Arrays.equals(arguments, that.arguments);
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Resolves class names, as returned by {@link Class#getName()}, to classes.
+ * Resolved classes are cached, and primitive type names are supported.
+ */
+public class ClassResolver {
+	private static ConcurrentHashMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+
+	static {
+		Class<?>[] primitiveTypes = {boolean.class, byte.class, char.class, short.class, int.class, long.class, float.class, double.class, void.class};
+		for (Class<?> primitiveType : primitiveTypes) {
+			classes.put(primitiveType.getName(), primitiveType);
+		}
+	}
+
+	private ClassResolver() {}
+
+	public static Class<?> forName(String name) throws ClassNotFoundException {
+		Class<?> result = classes.get(name);
+		if (result == null) {
+			result = Class.forName(name);
+			classes.put(name, result);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.OutputStream;
+
+/** Encodes and decodes the arguments, results and exceptions of invocations.
+ * The content type identifies the codec to the peer, which must have a codec registered for the same content type.
+ * @author rberdeen
+ *
+ */
+public interface Codec {
+	/** Returns the content type of messages encoded by this codec.
+	 */
+	public String getContentType();
+
+	/** Returns an object output that encodes objects to the stream.
+	 */
+	public ObjectOutput createOutput(OutputStream out) throws IOException;
+
+	/** Returns an object input that decodes objects from the stream.
+	 */
+	public ObjectInput createInput(InputStream in) throws IOException;
+}
@@ -19,36 +19,619 @@
 
 package com.ryanberdeen.djava;
 
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
 /** A connection to a remote system capable of handling dJava method invocations.
  *
  */
 public abstract class DJavaConnection {
+	public static final long DEFAULT_RELEASE_DELAY = 1000;
+	public static final int DEFAULT_RESULT_CACHE_SIZE = 1024;
+
 	protected DJavaContext dJavaContext;
-	private ThreadLocal<Long> requestingThreadId;
+	private ThreadLocal<Batch> currentBatch = new ThreadLocal<Batch>();
+	private AtomicInteger nextPromiseId = new AtomicInteger(1);
+
+	/** Guards the asynchronous invocations waiting to be sent, and orders the sending of them. */
+	private Object asynchronousLock = new Object();
+	private ArrayList<RemoteInvocation> pendingAsynchronousInvocations = new ArrayList<RemoteInvocation>();
+
+	/** The call chain the pending asynchronous invocations were made in. A batch is performed in a single chain. */
+	private CallContext pendingAsynchronousCallContext;
+	/** Whether asynchronous invocations are pending or being sent, so that flushing needn't take the lock when none
+	 * are. Only changed while holding the lock.
+	 */
+	private volatile boolean asynchronousInvocationsPending = false;
+	private ScheduledFuture<?> asynchronousFlushTask;
+	private int maxPendingAsynchronousInvocations = 1;
+	private long asynchronousFlushDelay = 0;
+
+	/** Ids of remote objects whose proxies have been collected, waiting to be released. Guards the release fields. */
+	private HashSet<Long> pendingReleases = new HashSet<Long>();
+	private HashSet<Integer> pendingPromiseReleases = new HashSet<Integer>();
+	private ScheduledFuture<?> releaseTask;
+	private long releaseDelay = DEFAULT_RELEASE_DELAY;
+
+	/** Guards the lease tasks. */
+	private Object leaseLock = new Object();
+	private ScheduledFuture<?> leaseExpiryTask;
+	private ScheduledFuture<?> leaseRenewalTask;
+
+	/** Maps from name to the descriptor the peer returned when the name was looked up. */
+	private ConcurrentHashMap<String, ObjectDescriptor> namedObjectDescriptors = new ConcurrentHashMap<String, ObjectDescriptor>();
+
+	/** The results of cacheable calls. */
+	private ResultCache resultCache = new ResultCache(DEFAULT_RESULT_CACHE_SIZE);
+
+	/** The results of idempotent calls that have been sent, shared by identical calls made before they complete. */
+	private ConcurrentHashMap<CallKey, OutstandingCall> outstandingCalls = new ConcurrentHashMap<CallKey, OutstandingCall>();
+
+	/** Incoming invocations that haven't completed, by the id the peer can cancel them with. */
+	private ConcurrentHashMap<Integer, LocalInvocation> cancellableInvocations = new ConcurrentHashMap<Integer, LocalInvocation>();
+
+	/** The number of incoming invocations that have been dispatched and not completed, and the limit on it. */
+	private AtomicInteger inFlightInvocations = new AtomicInteger();
+	private volatile int maxInFlightInvocations = 0;
+
+	/** The executor incoming invocations are performed with, or null to use the request handler's. */
+	private volatile Executor dispatchExecutor;
+
+	/** The codec used to encode outgoing messages. */
+	private Codec codec;
+
+	/** Maps from content type to the codec that decodes it. */
+	private ConcurrentHashMap<String, Codec> codecs = new ConcurrentHashMap<String, Codec>();
 
 	public DJavaConnection(boolean bidirectional) {
 		dJavaContext = new DJavaContext(bidirectional);
-		requestingThreadId = new ThreadLocal<Long>();
+		registerCodec(new BinaryCodec());
+		registerCodec(new SessionSerializationCodec());
+		setCodec(new SerializationCodec());
+	}
+
+	/** Sets the codec used to encode outgoing messages. The codec is also registered to decode incoming messages.
+	 * The peer must have a codec registered for the same content type. Codecs that keep per-connection state, such
+	 * as {@link SessionSerializationCodec}, must not be shared between connections.
+	 */
+	public void setCodec(Codec codec) {
+		registerCodec(codec);
+		this.codec = codec;
+	}
+
+	public Codec getCodec() {
+		return codec;
+	}
+
+	/** Registers a codec to decode incoming messages with its content type.
+	 */
+	public void registerCodec(Codec codec) {
+		codecs.put(codec.getContentType(), codec);
+	}
+
+	/** Returns the codec registered for a content type, or null if there is none.
+	 */
+	public Codec getCodec(String contentType) {
+		return contentType != null ? codecs.get(contentType) : null;
 	}
 
 	public abstract Object invokeRemotely(RemoteInvocation invocation) throws Throwable;
 
+	/** Sends an invocation without waiting for the response. The future is completed with the result, or the
+	 * exception thrown, when the response arrives.
+	 */
+	protected abstract CompletableFuture<Object> invokeRemotelyWithFuture(RemoteInvocation invocation);
+
+	/** Sends a batch of invocations in a single message, and sets their results.
+	 */
+	protected abstract void invokeRemotely(Batch batch) throws Exception;
+
+	/** Invokes a method remotely, or records the invocation if a batch is in progress on the current thread.
+	 */
+	Object invoke(RemoteInvocation invocation) throws Throwable {
+		// batches and shared calls can't refer to promises or names
+		boolean unresolvedTarget = invocation.getTargetPromiseId() != 0 || invocation.getTargetName() != null;
+		invocation.setDeadline(Deadline.forCall(invocation.getTimeout()));
+
+		Batch batch = currentBatch.get();
+		if (batch != null && !unresolvedTarget) {
+			return getBatchedResult(batch, batch.add(invocation), invocation);
+		}
+		else if (Deadline.hasPassed(invocation.getDeadline())) {
+			throw new DeadlineExceededException(invocation.getMethodName());
+		}
+		else if (invocation.isPipelined()) {
+			flush();
+			return invokePipelined(invocation);
+		}
+		else if (invocation.isFutureResult()) {
+			flush();
+			return withDeadline(invokeRemotelyWithFuture(invocation), invocation);
+		}
+		else if (invocation.isAsynchronous() && maxPendingAsynchronousInvocations > 1 && !unresolvedTarget) {
+			addPendingAsynchronousInvocation(invocation);
+			return null;
+		}
+		else if ((invocation.getCacheTtl() >= 0 || invocation.isIdempotent()) && !unresolvedTarget && isCallKey(invocation)) {
+			return invokeShared(invocation);
+		}
+		else {
+			// keep invocations in order
+			flush();
+			return invokeRemotely(invocation);
+		}
+	}
+
+	/** Returns the value to return for an invocation recorded in a batch. Methods that return a future get one that
+	 * is completed once the batch has been sent, and methods that return an interface get a proxy for the result, which
+	 * can be called once the batch has been sent. Other methods return their default result.
+	 */
+	private static Object getBatchedResult(Batch batch, int index, RemoteInvocation invocation) {
+		if (invocation.isFutureResult()) {
+			return batch.getResultFuture(index);
+		}
+		else if (invocation.getReturnType().isInterface()) {
+			Class<?> returnType = invocation.getReturnType();
+			return Proxy.newProxyInstance(returnType.getClassLoader(), new Class[] {returnType}, new BatchResultInvocationHandler(invocation.getMethodName(), batch.getResultFuture(index)));
+		}
+		else {
+			return invocation.getDefaultResult();
+		}
+	}
+
+	/** Performs an invocation whose result can be shared with identical invocations: a cached result is returned if
+	 * there is one, and an idempotent invocation waits for an identical one that has already been sent.
+	 * @see Cacheable
+	 * @see Idempotent
+	 */
+	private Object invokeShared(RemoteInvocation invocation) throws Throwable {
+		CallKey key;
+		try {
+			key = new CallKey(invocation);
+		}
+		catch (IOException ex) {
+			// the arguments can't be compared, so the result isn't shared
+			flush();
+			return invokeRemotely(invocation);
+		}
+
+		// read before the call, so that an invalidation that arrives while it is outstanding isn't overwritten
+		long generation = resultCache.getGeneration(invocation.getTargetId());
+		if (invocation.getCacheTtl() >= 0) {
+			Object result = resultCache.get(key);
+			if (result != ResultCache.MISS) {
+				return result;
+			}
+		}
+
+		if (!invocation.isIdempotent()) {
+			flush();
+			Object result = invokeRemotely(invocation);
+			resultCache.put(key, result, invocation.getCacheTtl(), generation);
+			return result;
+		}
+
+		OutstandingCall call = new OutstandingCall();
+		OutstandingCall outstandingCall = outstandingCalls.putIfAbsent(key, call);
+		if (outstandingCall != null && outstandingCall.sender == Thread.currentThread()) {
+			// made by a callback the sender is performing while it waits, so it can't wait for itself
+			flush();
+			return invokeRemotely(invocation);
+		}
+		else if (outstandingCall != null) {
+			return awaitSharedResult(outstandingCall, invocation);
+		}
+
+		try {
+			flush();
+			Object result = invokeRemotely(invocation);
+			if (invocation.getCacheTtl() >= 0) {
+				resultCache.put(key, result, invocation.getCacheTtl(), generation);
+			}
+			call.complete(result);
+			return result;
+		}
+		catch (Throwable t) {
+			call.completeExceptionally(t);
+			throw t;
+		}
+		finally {
+			outstandingCalls.remove(key, call);
+		}
+	}
+
+	/** Waits for the result of an identical call another caller sent, until the invocation's own deadline. Waits
+	 * uninterruptibly, like the caller that sent the request.
+	 */
+	private static Object awaitSharedResult(OutstandingCall outstandingCall, RemoteInvocation invocation) throws Throwable {
+		long deadline = invocation.getDeadline();
+		boolean interrupted = false;
+		try {
+			for (;;) {
+				try {
+					if (deadline == Deadline.NONE) {
+						return outstandingCall.get();
+					}
+					long remainingMillis = deadline - System.currentTimeMillis();
+					if (remainingMillis <= 0) {
+						throw new DeadlineExceededException(invocation.getMethodName());
+					}
+					return outstandingCall.get(remainingMillis, TimeUnit.MILLISECONDS);
+				}
+				catch (ExecutionException ex) {
+					throw ex.getCause();
+				}
+				catch (InterruptedException ex) {
+					interrupted = true;
+				}
+				catch (TimeoutException ex) {
+					// the deadline is checked again
+				}
+			}
+		}
+		finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/** Returns true if the arguments of an invocation can identify its result. References to remote objects are
+	 * compared by calling them, so only arguments passed by value can be used.
+	 */
+	private static boolean isCallKey(RemoteInvocation invocation) {
+		Object[] arguments = invocation.getArguments();
+		if (arguments != null) {
+			Class<?>[] parameterTypes = invocation.getParameterTypes();
+			for (int i = 0; i < arguments.length; i++) {
+				Object argument = arguments[i];
+				if (argument instanceof RemoteInvocationProxy || (argument != null && !DJavaContext.isPassedByValue(parameterTypes[i], argument, invocation.isArgumentByValue(i)))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/** Sets the number of results of cacheable calls kept. The least recently used are evicted first.
+	 * @param maxSize the number of results, or 0 to disable caching
+	 * @see Cacheable
+	 */
+	public void setResultCacheSize(int maxSize) {
+		resultCache.setMaxSize(maxSize);
+	}
+
+	public CacheStatistics getCacheStatistics() {
+		return resultCache.getStatistics();
+	}
+
+	/** Discards the cached results of calls on a remote object.
+	 * @param proxy a proxy for the remote object
+	 * @see Cacheable
+	 */
+	public void invalidateCachedResults(Object proxy) {
+		if (proxy instanceof RemoteInvocationProxy) {
+			resultCache.invalidate(((RemoteInvocationProxy) proxy).getRemoteObjectReference().getId());
+		}
+	}
+
+	/** Discards the cached results of calls on remote objects. Called when the peer reports they have changed. */
+	public void invalidateCachedResults(long[] ids) {
+		for (long id : ids) {
+			resultCache.invalidate(id);
+		}
+	}
+
+	/** Discards all cached results. */
+	public void invalidateCachedResults() {
+		resultCache.invalidateAll();
+	}
+
+	/** Tells the peer to discard its cached results of calls on a local object, after the object has changed.
+	 * Does nothing if the object has not been exported to the peer.
+	 * @see Cacheable
+	 */
+	public void invalidatePeerCachedResults(Object localObject) {
+		long id = dJavaContext.getExportedId(localObject);
+		if (id != 0) {
+			try {
+				invalidateCachedResultsRemotely(new long[] {id});
+			}
+			catch (RuntimeException ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	/** Tells the peer to discard its cached results of calls on local objects. */
+	protected abstract void invalidateCachedResultsRemotely(long[] ids);
+
+	/** Sends a pipelined invocation, and returns a promise for its result.
+	 * @see Pipelined
+	 */
+	private Object invokePipelined(RemoteInvocation invocation) {
+		int promiseId = nextPromiseId.getAndIncrement();
+		invocation.setResultPromiseId(promiseId);
+		CompletableFuture<Object> result = withDeadline(invokeRemotelyWithFuture(invocation), invocation);
+
+		Class<?>[] interfaceClasses = new Class[] {RemoteInvocationProxy.class, invocation.getReturnType()};
+		return Proxy.newProxyInstance(interfaceClasses[0].getClassLoader(), interfaceClasses, new PromiseInvocationHandler(this, promiseId, result));
+	}
+
+	/** Fails the future for the result of an invocation if the result doesn't arrive before the invocation's deadline.
+	 */
+	private static CompletableFuture<Object> withDeadline(final CompletableFuture<Object> result, final RemoteInvocation invocation) {
+		if (invocation.getDeadline() != Deadline.NONE && !result.isDone()) {
+			final ScheduledFuture<?> timeoutTask = Scheduler.schedule(new Runnable() {
+				public void run() {
+					result.completeExceptionally(new DeadlineExceededException(invocation.getMethodName()));
+				}
+			}, invocation.getDeadline() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+			result.whenComplete(new BiConsumer<Object, Throwable>() {
+				public void accept(Object value, Throwable throwable) {
+					timeoutTask.cancel(false);
+				}
+			});
+		}
+		return result;
+	}
+
+	/** Sets when asynchronous invocations are sent. Asynchronous invocations are held until maxInvocations are pending,
+	 * the oldest has waited for maxDelayMillis, a synchronous invocation is made, or {@link #flush()} is called, and
+	 * then sent together in a single message. By default, they are sent immediately.
+	 * @param maxInvocations the number of pending invocations that causes them to be sent, or 1 to send immediately
+	 * @param maxDelayMillis how long an invocation may wait to be sent
+	 */
+	public void setAsynchronousFlushPolicy(int maxInvocations, long maxDelayMillis) {
+		synchronized (asynchronousLock) {
+			maxPendingAsynchronousInvocations = maxInvocations;
+			asynchronousFlushDelay = maxDelayMillis;
+		}
+		flush();
+	}
+
+	/** Sends any pending asynchronous invocations.
+	 */
+	public void flush() {
+		if (!asynchronousInvocationsPending) {
+			return;
+		}
+		synchronized (asynchronousLock) {
+			if (pendingAsynchronousInvocations.isEmpty()) {
+				return;
+			}
+
+			Batch batch = new Batch(true, pendingAsynchronousInvocations, pendingAsynchronousCallContext);
+			pendingAsynchronousInvocations = new ArrayList<RemoteInvocation>();
+			pendingAsynchronousCallContext = null;
+			if (asynchronousFlushTask != null) {
+				asynchronousFlushTask.cancel(false);
+				asynchronousFlushTask = null;
+			}
+
+			try {
+				// sent while holding the lock so that batches are sent in order
+				invokeRemotely(batch);
+			}
+			catch (Exception ex) {
+				// TODO report failed asynchronous invocations
+				ex.printStackTrace();
+			}
+			finally {
+				// cleared only once the batch is sent, so that a call that skips the lock can't overtake it
+				asynchronousInvocationsPending = !pendingAsynchronousInvocations.isEmpty();
+			}
+		}
+	}
+
+	private void addPendingAsynchronousInvocation(RemoteInvocation invocation) {
+		CallContext callContext = CallContext.current();
+		synchronized (asynchronousLock) {
+			if (!pendingAsynchronousInvocations.isEmpty() && !isSameCallContext(callContext, pendingAsynchronousCallContext)) {
+				// invocations made in another chain are sent first, so they keep their chain and their order
+				flush();
+			}
+			pendingAsynchronousCallContext = callContext;
+			pendingAsynchronousInvocations.add(invocation);
+			asynchronousInvocationsPending = true;
+			if (pendingAsynchronousInvocations.size() >= maxPendingAsynchronousInvocations) {
+				flush();
+			}
+			else if (asynchronousFlushTask == null) {
+				asynchronousFlushTask = Scheduler.schedule(new Runnable() {
+					public void run() {
+						flush();
+					}
+				}, asynchronousFlushDelay, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	private static boolean isSameCallContext(CallContext a, CallContext b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/** Runs calls, recording the remote invocations made on this connection's proxies, then sends them as a single batch.
+	 * While recorded, invocations that return a future return one that is completed once the batch has been sent, and
+	 * invocations that return an interface return a proxy for the result, which can only be called once the batch has
+	 * been sent. Other invocations return null, or zero or false for primitive return types. All the results are
+	 * available from the batch once it is returned. A batch started within another batch on the same thread becomes
+	 * part of the outer batch, which is returned without being sent.
+	 * @return the batch of invocations
+	 */
+	public Batch batch(Runnable calls) throws Exception {
+		Batch outerBatch = currentBatch.get();
+		if (outerBatch != null) {
+			calls.run();
+			return outerBatch;
+		}
+
+		Batch batch = new Batch(false);
+		currentBatch.set(batch);
+		try {
+			calls.run();
+		}
+		catch (RuntimeException ex) {
+			batch.failResultFutures(ex);
+			throw ex;
+		}
+		finally {
+			currentBatch.remove();
+		}
+
+		batch.prepareResults();
+		if (batch.size() > 0) {
+			try {
+				flush();
+				invokeRemotely(batch);
+			}
+			catch (Exception ex) {
+				batch.failResultFutures(ex);
+				throw ex;
+			}
+			batch.completeResultFutures();
+		}
+		return batch;
+	}
+
 	public RemoteInvocationProxy getProxy(ObjectDescriptor objectDescriptor) {
 		return dJavaContext.getProxy(this, objectDescriptor);
 	}
 
-	public Object getTarget(Integer id) {
+	public Object getTarget(long id) {
 		return dJavaContext.getTarget(id);
 	}
 
+	DispatchTable getDispatchTable(Class<?> targetClass) {
+		return dJavaContext.getDispatchTable(targetClass);
+	}
+
+	/** Sets the executor incoming invocations are performed with. This overrides the executor set on the request
+	 * handler. Invocations that are part of a call a thread is waiting on are performed by that thread. Other
+	 * invocations may be performed concurrently, and not in the order they arrived.
+	 * @see DispatchExecutors
+	 */
+	public void setDispatchExecutor(Executor dispatchExecutor) {
+		this.dispatchExecutor = dispatchExecutor;
+	}
+
+	public Executor getDispatchExecutor() {
+		return dispatchExecutor;
+	}
+
+	/** Returns the executor responses to calls that return futures are handled with, so that decoding them and the
+	 * dependent stages of the futures don't run on the thread that delivers responses. This is the dispatch executor,
+	 * or the common fork join pool if there is none. Tasks the dispatch executor rejects run on the calling thread,
+	 * so that no response is dropped.
+	 */
+	protected Executor getCompletionExecutor() {
+		final Executor executor = dispatchExecutor;
+		if (executor == null) {
+			return ForkJoinPool.commonPool();
+		}
+		return new Executor() {
+			public void execute(Runnable command) {
+				try {
+					executor.execute(command);
+				}
+				catch (RejectedExecutionException ex) {
+					command.run();
+				}
+			}
+		};
+	}
+
 	public void invokeLocally(LocalInvocation localInvocation) {
-		dJavaContext.invokeLocally(localInvocation);
+		invokeLocally(localInvocation, null);
+	}
+
+	/** Performs an incoming invocation.
+	 * @param defaultExecutor the executor to use if none is set on the connection, or null to perform the invocation
+	 * on the current thread
+	 */
+	public void invokeLocally(LocalInvocation localInvocation, Executor defaultExecutor) {
+		if (localInvocation.getInvocationId() != 0) {
+			cancellableInvocations.put(localInvocation.getInvocationId(), localInvocation);
+		}
+		Executor executor = dispatchExecutor != null ? dispatchExecutor : defaultExecutor;
+		dJavaContext.invokeLocally(localInvocation, executor != null ? executor : DispatchExecutors.direct());
+	}
+
+	/** Limits the number of incoming invocations from the peer that may be waiting for a thread or being performed at
+	 * once. Further invocations fail immediately with a {@link ServerBusyException}, so that one peer can't take all of
+	 * the dispatch executor's capacity. Invocations that are part of a call a thread is waiting on are always
+	 * accepted, as they are performed by that thread.
+	 * @param maxInvocations the limit, or 0 for no limit, which is the default
+	 * @see DispatchExecutors#admissionControlledPool(int, int)
+	 */
+	public void setMaxInFlightInvocations(int maxInvocations) {
+		maxInFlightInvocations = maxInvocations;
+	}
+
+	/** Accepts an incoming invocation for dispatch, if the limit allows it. */
+	boolean admitInvocation() {
+		int max = maxInFlightInvocations;
+		if (inFlightInvocations.incrementAndGet() > max && max > 0) {
+			inFlightInvocations.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/** Called when an accepted invocation completes or is dropped. */
+	void releaseInvocation() {
+		inFlightInvocations.decrementAndGet();
+	}
+
+	/** Cancels an incoming invocation the peer has given up on. An invocation that hasn't started is dropped, and the
+	 * thread performing one that has is interrupted. Invocations that have completed are unaffected.
+	 * @param invocationId the id the peer gave the invocation
+	 */
+	public void cancelLocalInvocation(int invocationId) {
+		LocalInvocation localInvocation = cancellableInvocations.remove(invocationId);
+		if (localInvocation != null) {
+			localInvocation.cancel();
+		}
+	}
+
+	void removeCancellableInvocation(int invocationId, LocalInvocation localInvocation) {
+		cancellableInvocations.remove(invocationId, localInvocation);
 	}
 
 	public ObjectDescriptor getObjectDescriptor(Object toProxy) {
 		return dJavaContext.getObjectDescriptor(toProxy);
 	}
 
+	/** Returns the descriptor for an object being returned to the peer, carrying the values of its prefetched getters.
+	 * @see Prefetch
+	 */
+	public ObjectDescriptor getResultObjectDescriptor(Object toProxy) {
+		return dJavaContext.getResultObjectDescriptor(toProxy);
+	}
+
+	/** Discards the prefetched values of a proxy, so that its getters are invoked remotely until the object is
+	 * returned again. Use this when the remote object may have changed.
+	 * @see Prefetch
+	 */
+	public void invalidatePrefetchedValues(Object proxy) {
+		DJavaContext.invalidatePrefetchedValues(proxy);
+	}
+
 	/** Returns a proxy object that forwards method invocations to the remote object specified.
 	 * @param <T> the interface of the proxied object
 	 * @param interfaceClass the interface to proxy
@@ -56,36 +639,327 @@ public abstract class DJavaConnection {
 	 * @return an object implementing the specified interface
 	 */
 	@SuppressWarnings("unchecked")
-	public <T> T proxy(Class<T> interfaceClass, Integer id) {
+	public <T> T proxy(Class<T> interfaceClass, long id) {
 		Class[] classes = new Class[] {interfaceClass};
 
 		ObjectDescriptor objectDescriptor = new ObjectDescriptor(classes, id);
 		return (T) dJavaContext.getProxy(this, objectDescriptor);
 	}
 
+	/** Returns a proxy for an object resolved by name, using the method table fingerprint the peer reported. */
+	Object proxy(Class<?> interfaceClass, long id, long methodTableFingerprint) {
+		return dJavaContext.getProxy(this, new ObjectDescriptor(new Class[] {interfaceClass}, id, methodTableFingerprint));
+	}
+
+	/** Returns a proxy for the remote object registered with a name, or null if there is none. Names are only looked
+	 * up once, while a proxy for the object is in use.
+	 */
 	public Object proxy(String name) {
-		ObjectDescriptor objectDescriptor = lookUpRemoteObject(name);
+		ObjectDescriptor objectDescriptor = namedObjectDescriptors.get(name);
+		if (objectDescriptor == null) {
+			objectDescriptor = lookUpRemoteObject(name);
+			if (objectDescriptor != null) {
+				namedObjectDescriptors.put(name, objectDescriptor);
+			}
+		}
 		return objectDescriptor != null ? dJavaContext.getProxy(this, objectDescriptor) : null;
 	}
 
+	/** Returns proxies for the remote objects registered with the names, looking up any that aren't known in a single
+	 * request. The proxy for a name that isn't registered is null.
+	 */
+	public Object[] proxyAll(String... names) {
+		ObjectDescriptor[] objectDescriptors = new ObjectDescriptor[names.length];
+		ArrayList<String> unknownNames = new ArrayList<String>();
+		for (int i = 0; i < names.length; i++) {
+			objectDescriptors[i] = namedObjectDescriptors.get(names[i]);
+			if (objectDescriptors[i] == null) {
+				unknownNames.add(names[i]);
+			}
+		}
+
+		if (!unknownNames.isEmpty()) {
+			ObjectDescriptor[] found = lookUpRemoteObjects(unknownNames.toArray(new String[unknownNames.size()]));
+			for (int i = 0, j = 0; i < names.length; i++) {
+				if (objectDescriptors[i] == null) {
+					objectDescriptors[i] = found[j++];
+					if (objectDescriptors[i] != null) {
+						namedObjectDescriptors.put(names[i], objectDescriptors[i]);
+					}
+				}
+			}
+		}
+
+		Object[] result = new Object[names.length];
+		for (int i = 0; i < names.length; i++) {
+			result[i] = objectDescriptors[i] != null ? dJavaContext.getProxy(this, objectDescriptors[i]) : null;
+		}
+		return result;
+	}
+
+	/** Returns a proxy for a named remote object without looking it up. The first call made on the proxy names the
+	 * object, and the peer resolves the name and performs the call in a single round trip. Calls that don't wait for a
+	 * response, and calls recorded in a batch, look the object up first. If there is no object with the name, calls
+	 * throw {@link TargetNotFoundException}.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T lazyProxy(String name, Class<T> interfaceClass) {
+		Class<?>[] interfaceClasses = new Class[] {RemoteInvocationProxy.class, interfaceClass};
+		return (T) Proxy.newProxyInstance(interfaceClass.getClassLoader(), interfaceClasses, new LazyInvocationHandler(this, name, interfaceClass));
+	}
+
+	/** Discards the results of looking up names, so that they are looked up again. */
+	public void invalidateLookupCache() {
+		namedObjectDescriptors.clear();
+	}
+
 	public abstract ObjectDescriptor lookUpRemoteObject(String name);
 
-	public Long getRequestingThreadId() {
-		return requestingThreadId.get();
+	/** Looks up several named remote objects in a single request.
+	 * @return the descriptors of the objects, in the same order as the names, with null for names that aren't registered
+	 */
+	public abstract ObjectDescriptor[] lookUpRemoteObjects(String[] names);
+
+	/** Returns true if the current thread is recording a batch. */
+	boolean isRecordingBatch() {
+		return currentBatch.get() != null;
 	}
 
-	void setRequestingThreadId(Long requestingThreadId) {
-		this.requestingThreadId.set(requestingThreadId);
+	/** Called when a proxy has been collected. The remote object is released unless a new proxy has replaced it. */
+	void releaseProxyReference(ProxyReference proxyReference) {
+		dJavaContext.releaseProxyReference(this, proxyReference);
 	}
 
-	void finalizeRemoteObjectReference(RemoteObjectReference remoteObjectReference) {
-		dJavaContext.removeProxyReference(remoteObjectReference);
-		finalizeRemotely(remoteObjectReference);
+	/** Adds the id of a remote object that is no longer referenced to the next release message. */
+	void addPendingRelease(long id) {
+		// the id may be reused for another object
+		resultCache.invalidate(id);
+		if (!namedObjectDescriptors.isEmpty()) {
+			// an object may be registered with more than one name
+			RemoteObjectReference remoteObjectReference = new RemoteObjectReference(id);
+			while (namedObjectDescriptors.values().remove(remoteObjectReference));
+		}
+		synchronized (pendingReleases) {
+			pendingReleases.add(id);
+			scheduleReleases();
+		}
 	}
 
-	protected abstract void finalizeRemotely(RemoteObjectReference remoteObjectReference);
+	/** Adds the id of a promise that is no longer used to the next release message. */
+	void addPendingPromiseRelease(int promiseId) {
+		synchronized (pendingReleases) {
+			pendingPromiseReleases.add(promiseId);
+			scheduleReleases();
+		}
+	}
+
+	private void scheduleReleases() {
+		synchronized (pendingReleases) {
+			if (releaseTask == null) {
+				releaseTask = Scheduler.schedule(new Runnable() {
+					public void run() {
+						flushReleases();
+					}
+				}, releaseDelay, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/** Removes an id from the next release message, because a new proxy for the object has been created. */
+	void cancelPendingRelease(long id) {
+		synchronized (pendingReleases) {
+			pendingReleases.remove(id);
+		}
+	}
+
+	/** Sets how long the ids of collected proxies are held, so that they can be released with a single message.
+	 */
+	public void setReleaseDelay(long releaseDelayMillis) {
+		synchronized (pendingReleases) {
+			releaseDelay = releaseDelayMillis;
+		}
+	}
+
+	/** Releases the remote objects whose proxies have been collected.
+	 */
+	public void flushReleases() {
+		long[] ids;
+		int[] promiseIds;
+		synchronized (pendingReleases) {
+			releaseTask = null;
+			ids = toIdArray(pendingReleases);
+			promiseIds = toArray(pendingPromiseReleases);
+			pendingReleases.clear();
+			pendingPromiseReleases.clear();
+		}
+
+		try {
+			if (ids.length > 0) {
+				// TODO the peer may send one of these objects again before the message arrives
+				finalizeRemotely(ids);
+			}
+			if (promiseIds.length > 0) {
+				releasePromisesRemotely(promiseIds);
+			}
+		}
+		catch (RuntimeException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	private static long[] toIdArray(HashSet<Long> ids) {
+		long[] result = new long[ids.size()];
+		int i = 0;
+		for (Long id : ids) {
+			result[i++] = id;
+		}
+		return result;
+	}
+
+	private static int[] toArray(HashSet<Integer> ids) {
+		int[] result = new int[ids.size()];
+		int i = 0;
+		for (Integer id : ids) {
+			result[i++] = id;
+		}
+		return result;
+	}
+
+	/** Tells the peer that the remote objects are no longer referenced. */
+	protected abstract void finalizeRemotely(long[] ids);
+
+	/** Tells the peer that promises for the results of pipelined calls are no longer used. */
+	protected abstract void releasePromisesRemotely(int[] promiseIds);
+
+	/** Removes promises for the results of pipelined calls. Called when the peer no longer uses them. */
+	public void releasePromises(int[] promiseIds) {
+		dJavaContext.releasePromises(promiseIds);
+	}
+
+	void resolvePromise(int promiseId, Serializable result, Throwable throwable) {
+		dJavaContext.resolvePromise(promiseId, result, throwable);
+	}
+
+	/** Sets how long objects exported to the peer are kept without the peer renewing their leases, so that objects
+	 * held by a peer that has gone away are eventually removed. The peer must renew leases more often than this, with
+	 * {@link #setLeaseRenewalInterval(long)}. By default, exports are kept until the peer releases them.
+	 * @param leaseDurationMillis the lease duration, or 0 to keep exports until they are released
+	 */
+	public void setLeaseDuration(long leaseDurationMillis) {
+		dJavaContext.setLeaseDuration(leaseDurationMillis);
+		synchronized (leaseLock) {
+			if (leaseExpiryTask != null) {
+				leaseExpiryTask.cancel(false);
+				leaseExpiryTask = null;
+			}
+			if (leaseDurationMillis > 0) {
+				leaseExpiryTask = schedulePeriodically(new PeriodicTask(this) {
+					@Override
+					protected void run(DJavaConnection connection) {
+						connection.dJavaContext.removeExpiredLocalObjects();
+					}
+				}, Math.max(leaseDurationMillis / 2, 1));
+			}
+		}
+	}
+
+	/** Sets how often the leases of the remote objects this side has proxies for are renewed.
+	 * @param renewalIntervalMillis the renewal interval, or 0 to stop renewing leases
+	 */
+	public void setLeaseRenewalInterval(long renewalIntervalMillis) {
+		synchronized (leaseLock) {
+			if (leaseRenewalTask != null) {
+				leaseRenewalTask.cancel(false);
+				leaseRenewalTask = null;
+			}
+			if (renewalIntervalMillis > 0) {
+				leaseRenewalTask = schedulePeriodically(new PeriodicTask(this) {
+					@Override
+					protected void run(DJavaConnection connection) {
+						connection.renewLeases();
+					}
+				}, renewalIntervalMillis);
+			}
+		}
+	}
+
+	/** Renews the leases of the remote objects this side has proxies for. */
+	public void renewLeases() {
+		long[] ids = dJavaContext.getProxiedIds();
+		if (ids.length > 0) {
+			try {
+				renewRemotely(ids);
+			}
+			catch (RuntimeException ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	/** Renews the leases of objects exported to the peer. Called when the peer renews them. */
+	public void renewLocalLeases(long[] ids) {
+		dJavaContext.renewLeases(ids);
+	}
+
+	/** Asks the peer to renew the leases of remote objects. */
+	protected abstract void renewRemotely(long[] ids);
+
+	/** Removes every object exported to the peer, and stops expiring and renewing leases. The transport gives no
+	 * notice when a connection closes, so this should be called by whoever owns the connection when it does.
+	 */
+	public void releaseAll() {
+		synchronized (leaseLock) {
+			if (leaseExpiryTask != null) {
+				leaseExpiryTask.cancel(false);
+				leaseExpiryTask = null;
+			}
+			if (leaseRenewalTask != null) {
+				leaseRenewalTask.cancel(false);
+				leaseRenewalTask = null;
+			}
+		}
+		synchronized (pendingReleases) {
+			pendingReleases.clear();
+			pendingPromiseReleases.clear();
+		}
+		dJavaContext.removeAllLocalObjects();
+	}
+
+	private static ScheduledFuture<?> schedulePeriodically(PeriodicTask task, long intervalMillis) {
+		task.future = Scheduler.scheduleWithFixedDelay(task, intervalMillis, TimeUnit.MILLISECONDS);
+		return task.future;
+	}
+
+	/** The result of an idempotent call, and the thread waiting for the response. */
+	private static class OutstandingCall extends CompletableFuture<Object> {
+		private Thread sender = Thread.currentThread();
+	}
+
+	/** A scheduled task that holds its connection weakly, so that a connection that is no longer used can be
+	 * collected. The task is cancelled once the connection has been collected.
+	 */
+	private static abstract class PeriodicTask implements Runnable {
+		private WeakReference<DJavaConnection> connectionReference;
+		private volatile ScheduledFuture<?> future;
+
+		public PeriodicTask(DJavaConnection connection) {
+			connectionReference = new WeakReference<DJavaConnection>(connection);
+		}
+
+		public void run() {
+			DJavaConnection connection = connectionReference.get();
+			if (connection != null) {
+				run(connection);
+			}
+			else if (future != null) {
+				future.cancel(false);
+			}
+		}
+
+		protected abstract void run(DJavaConnection connection);
+	}
 
-	public void removeLocalObject(int id) {
+	public void removeLocalObject(long id) {
 		dJavaContext.removeLocalObject(id);
 	}
 
@@ -19,49 +19,183 @@
 
 package com.ryanberdeen.djava;
 
-import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.io.Serializable;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiFunction;
 
 
 public class DJavaContext {
+	private static final Set<Class<?>> BOXED_TYPES = new HashSet<Class<?>>(Arrays.<Class<?>>asList(Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class));
+
 	private boolean bidirectional;
-	private Integer proxyNumber = 1;
-	private HashMap<Object, ObjectDescriptor> objectDescriptors = new HashMap<Object, ObjectDescriptor>();
+
+	/** Maps from exported object, by identity, to its descriptor. */
+	private ConcurrentHashMap<IdentityKey, ObjectDescriptor> objectDescriptors = new ConcurrentHashMap<IdentityKey, ObjectDescriptor>();
 
 	/** Maps from id to target*/
-	private HashMap<Integer, Object> localObjects = new HashMap<Integer, Object>();
+	private ExportTable localObjects = new ExportTable();
+
+	/** The results of the peer's pipelined calls. */
+	private PromiseTable promises = new PromiseTable();
+
+	/** How long an exported object's lease lasts, or 0 if exports don't expire. */
+	private volatile long leaseDuration = 0;
 
-	private HashMap<RemoteObjectReference, WeakReference<RemoteInvocationProxy>> proxyReferences = new HashMap<RemoteObjectReference, WeakReference<RemoteInvocationProxy>>();
+	private ConcurrentHashMap<RemoteObjectReference, ProxyReference> proxyReferences = new ConcurrentHashMap<RemoteObjectReference, ProxyReference>();
 
+	/** Maps from the id of a call context to the thread waiting on a call in it. */
 	private ConcurrentHashMap<Long, WaitingThread> waitingThreads = new ConcurrentHashMap<Long, WaitingThread>();
 
 	private ConcurrentHashMap<String, Object> namedObjects = new ConcurrentHashMap<String, Object>();
 
+	/** The dispatch table of each exported class. Shared, as the tables don't depend on the context, and kept with the
+	 * class so that a class loader can still be collected once its classes have been exported.
+	 */
+	private static final ClassValue<DispatchTable> dispatchTables = new ClassValue<DispatchTable>() {
+		@Override
+		protected DispatchTable computeValue(Class<?> type) {
+			return new DispatchTable(type);
+		}
+	};
+
 	public DJavaContext(boolean bidirectional) {
 		this.bidirectional = bidirectional;
 	}
 
-	public Object getTarget(Integer id) {
+	public Object getTarget(long id) {
 		return localObjects.get(id);
 	}
 
 	public ObjectDescriptor getObjectDescriptor(Object toProxy) {
-		synchronized (objectDescriptors) {
-			ObjectDescriptor objectDescriptor = objectDescriptors.get(toProxy);
+		IdentityKey key = new IdentityKey(toProxy);
+		ObjectDescriptor objectDescriptor = objectDescriptors.get(key);
+
+		if (objectDescriptor == null) {
+			// build the dispatch table before any invocations arrive
+			DispatchTable dispatchTable = getDispatchTable(toProxy.getClass());
+			Class<?>[] interfaces = toProxy.getClass().getInterfaces();
 
-			if (objectDescriptor == null) {
-				Class<?>[] interfaces = toProxy.getClass().getInterfaces();
-				objectDescriptor = new ObjectDescriptor(interfaces, proxyNumber++);
-				objectDescriptors.put(toProxy, objectDescriptor);
-				localObjects.put(objectDescriptor.getId(), toProxy);
+			// the target must be found by id as soon as another thread can send the descriptor
+			long id = localObjects.add(toProxy, getLeaseExpiry());
+			objectDescriptor = new ObjectDescriptor(interfaces, id, dispatchTable.getMethodTable().getFingerprint());
+			ObjectDescriptor existing = objectDescriptors.putIfAbsent(key, objectDescriptor);
+			if (existing != null) {
+				// another thread exported the object first
+				localObjects.remove(id);
+				objectDescriptor = existing;
 			}
+		}
+		else if (leaseDuration > 0 && !localObjects.renew(objectDescriptor.getId(), getLeaseExpiry())) {
+			// the lease expired before it could be renewed, so the object is exported again
+			objectDescriptors.remove(key, objectDescriptor);
+			return getObjectDescriptor(toProxy);
+		}
+
+		return objectDescriptor;
+	}
+
+	/** Returns the id of an exported object, or 0 if it is not exported. */
+	public long getExportedId(Object object) {
+		ObjectDescriptor objectDescriptor = objectDescriptors.get(new IdentityKey(object));
+		return objectDescriptor != null ? objectDescriptor.getId() : 0;
+	}
 
+	/** Returns the descriptor for an object being returned to the peer, carrying the values of its prefetched getters.
+	 * @see Prefetch
+	 */
+	public ObjectDescriptor getResultObjectDescriptor(Object toProxy) {
+		ObjectDescriptor objectDescriptor = getObjectDescriptor(toProxy);
+		Method[] prefetchedMethods = getDispatchTable(toProxy.getClass()).getPrefetchedMethods();
+		if (prefetchedMethods.length == 0) {
 			return objectDescriptor;
 		}
+
+		HashMap<String, Serializable> prefetchedValues = new HashMap<String, Serializable>(prefetchedMethods.length * 2);
+		for (Method method : prefetchedMethods) {
+			try {
+				Object value = method.invoke(toProxy);
+				if (value == null || isPassedByValue(method.getReturnType(), value, MethodInfo.get(method).isResultByValue())) {
+					prefetchedValues.put(method.getName(), (Serializable) value);
+				}
+			}
+			catch (Exception ex) {
+				// left for the peer to invoke, so it gets the exception
+			}
+		}
+		return objectDescriptor.withPrefetchedValues(prefetchedValues);
+	}
+
+	/** Sets how long exported objects are kept without the peer renewing their leases, or 0 to keep them until the
+	 * peer releases them. Applies to objects exported from now on.
+	 */
+	public void setLeaseDuration(long leaseDurationMillis) {
+		leaseDuration = leaseDurationMillis;
+	}
+
+	public long getLeaseDuration() {
+		return leaseDuration;
+	}
+
+	private long getLeaseExpiry() {
+		long leaseDuration = this.leaseDuration;
+		return leaseDuration > 0 ? System.currentTimeMillis() + leaseDuration : Long.MAX_VALUE;
+	}
+
+	/** Renews the leases of exported objects. */
+	public void renewLeases(long[] ids) {
+		long leaseExpiry = getLeaseExpiry();
+		for (long id : ids) {
+			localObjects.renew(id, leaseExpiry);
+		}
+	}
+
+	/** Removes the exported objects whose leases have expired. */
+	public void removeExpiredLocalObjects() {
+		long now = System.currentTimeMillis();
+		for (long id : localObjects.getExpiredIds(now)) {
+			Object target = localObjects.removeIfExpired(id, now);
+			if (target != null) {
+				objectDescriptors.remove(new IdentityKey(target), new RemoteObjectReference(id));
+			}
+		}
+	}
+
+	/** Removes all the exported objects. */
+	public void removeAllLocalObjects() {
+		for (long id : localObjects.getIds()) {
+			removeLocalObject(id);
+		}
+	}
+
+	/** Returns the ids of the remote objects that have live proxies. */
+	long[] getProxiedIds() {
+		long[] result = new long[proxyReferences.size()];
+		int count = 0;
+		for (ProxyReference proxyReference : proxyReferences.values()) {
+			if (proxyReference.get() != null) {
+				if (count == result.length) {
+					result = Arrays.copyOf(result, count * 2 + 1);
+				}
+				result[count++] = proxyReference.getRemoteObjectReference().getId();
+			}
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	/** Returns the dispatch table for a class, creating it if necessary. */
+	DispatchTable getDispatchTable(Class<?> targetClass) {
+		return dispatchTables.get(targetClass);
 	}
 
 	public void registerNamedObject(String name, Object object) {
@@ -82,82 +216,173 @@ public class DJavaContext {
 		}
 	}
 
-	public RemoteInvocationProxy getProxy(DJavaConnection connection, ObjectDescriptor objectDescriptor) {
-		synchronized (proxyReferences) {
-			RemoteInvocationProxy proxy = null;
-			WeakReference<RemoteInvocationProxy> remoteProxyReference = proxyReferences.get(objectDescriptor);
-			if (remoteProxyReference != null) {
-				proxy = remoteProxyReference.get();
+	public RemoteInvocationProxy getProxy(final DJavaConnection connection, final ObjectDescriptor objectDescriptor) {
+		ProxyReference remoteProxyReference = proxyReferences.get(objectDescriptor);
+		if (remoteProxyReference != null) {
+			RemoteInvocationProxy proxy = remoteProxyReference.get();
+			if (proxy != null) {
+				updatePrefetchedValues(proxy, objectDescriptor);
+				return proxy;
+			}
+		}
+
+		/* create the proxy while holding only this reference's entry, so that there is never more than one proxy
+		 * for a remote object */
+		final RemoteInvocationProxy[] proxy = new RemoteInvocationProxy[1];
+		proxyReferences.compute(objectDescriptor.getRemoteObjectReference(), new BiFunction<RemoteObjectReference, ProxyReference, ProxyReference>() {
+			public ProxyReference apply(RemoteObjectReference remoteObjectReference, ProxyReference existingReference) {
+				if (existingReference != null) {
+					proxy[0] = existingReference.get();
+					if (proxy[0] != null) {
+						return existingReference;
+					}
+				}
+				else {
+					// the previous proxy may have been collected, but the object is in use again
+					connection.cancelPendingRelease(remoteObjectReference.getId());
+				}
+				proxy[0] = createProxy(connection, objectDescriptor);
+				return new ProxyReference(proxy[0], connection, remoteObjectReference);
 			}
-			if (proxy == null) {
-				Class<?>[] interfaceClasses = new Class[objectDescriptor.getProxiedClasses().length + 1];
-				System.arraycopy(objectDescriptor.getProxiedClasses(), 0, interfaceClasses, 1, objectDescriptor.getProxiedClasses().length);
-				interfaceClasses[0] = RemoteInvocationProxy.class;
-				RemoteObjectInvocationHandler handler = new RemoteObjectInvocationHandler(connection, new RemoteObjectReference(objectDescriptor));
-				proxy = (RemoteInvocationProxy) Proxy.newProxyInstance(interfaceClasses[0].getClassLoader(), interfaceClasses, handler);
-				proxyReferences.put(objectDescriptor.getRemoteObjectReference(), new WeakReference<RemoteInvocationProxy>(proxy));
+		});
+
+		updatePrefetchedValues(proxy[0], objectDescriptor);
+		return proxy[0];
+	}
+
+	/** Gives a proxy the prefetched values from a newer descriptor of its object. */
+	private static void updatePrefetchedValues(RemoteInvocationProxy proxy, ObjectDescriptor objectDescriptor) {
+		if (objectDescriptor.getPrefetchedValues() != null) {
+			((RemoteObjectInvocationHandler) Proxy.getInvocationHandler(proxy)).setPrefetchedValues(objectDescriptor.getPrefetchedValues());
+		}
+	}
+
+	/** Discards the prefetched values of a proxy, so that its getters are invoked remotely. */
+	public static void invalidatePrefetchedValues(Object proxy) {
+		if (proxy instanceof RemoteInvocationProxy) {
+			InvocationHandler handler = Proxy.getInvocationHandler(proxy);
+			if (handler instanceof RemoteObjectInvocationHandler) {
+				((RemoteObjectInvocationHandler) handler).setPrefetchedValues(null);
 			}
+		}
+	}
 
-			return proxy;
+	private RemoteInvocationProxy createProxy(DJavaConnection connection, ObjectDescriptor objectDescriptor) {
+		Class<?>[] interfaceClasses = new Class[objectDescriptor.getProxiedClasses().length + 1];
+		System.arraycopy(objectDescriptor.getProxiedClasses(), 0, interfaceClasses, 1, objectDescriptor.getProxiedClasses().length);
+		interfaceClasses[0] = RemoteInvocationProxy.class;
+		MethodTable methodTable = null;
+		if (objectDescriptor.getMethodTableFingerprint() != MethodTable.NO_FINGERPRINT) {
+			methodTable = MethodTable.forInterfaces(objectDescriptor.getProxiedClasses());
+			if (methodTable.getFingerprint() != objectDescriptor.getMethodTableFingerprint()) {
+				// the peers disagree about the interfaces, so fall back to method names
+				methodTable = null;
+			}
 		}
+		RemoteObjectInvocationHandler handler = new RemoteObjectInvocationHandler(connection, new RemoteObjectReference(objectDescriptor), methodTable);
+		return (RemoteInvocationProxy) Proxy.newProxyInstance(interfaceClasses[0].getClassLoader(), interfaceClasses, handler);
 	}
 
 	public void invokeLocally(LocalInvocation localInvocation) {
-		Long targetThreadId = localInvocation.getTargetThreadId();
-		if (targetThreadId != null) {
-			WaitingThread waitingThread = waitingThreads.get(targetThreadId);
-			if (waitingThread != null) {
-				waitingThread.setPendingInvocation(localInvocation);
+		invokeLocally(localInvocation, DispatchExecutors.direct());
+	}
+
+	/** Performs an invocation using an executor. Invocations in a call chain a thread is waiting on are performed by the
+	 * waiting thread instead.
+	 */
+	public void invokeLocally(final LocalInvocation localInvocation, Executor executor) {
+		if (localInvocation.getTargetPromiseId() != 0 && !promises.resolveTarget(localInvocation, executor)) {
+			// performed once the promise is resolved
+			return;
+		}
+
+		CallContext callContext = localInvocation.getCallContext();
+		if (callContext != null) {
+			WaitingThread waitingThread = waitingThreads.get(callContext.getId());
+			if (waitingThread != null && waitingThread.deliver(localInvocation)) {
 				return;
 			}
 		}
-		invoke(localInvocation);
+		Runnable dispatchTask = new Runnable() {
+			public void run() {
+				invoke(localInvocation);
+			}
+		};
+		if (localInvocation.isCancelled() || !localInvocation.admit()) {
+			// a cancelled invocation has already been answered, and must not take a slot
+			return;
+		}
+		localInvocation.setDispatchTask(dispatchTask, executor);
+		try {
+			executor.execute(dispatchTask);
+		}
+		catch (RejectedExecutionException ex) {
+			localInvocation.reject();
+		}
 	}
 
+	/** Performs an invocation. Anything it throws is reported to the requester, who would otherwise wait for a
+	 * response that never comes, since nothing above an executor's thread can answer it.
+	 */
 	public void invoke(LocalInvocation localInvocation) {
 		try {
 			localInvocation.invoke();
 		}
-		catch (Error e) {
-			// TODO handle fatal error
-			throw e;
-		}
-		catch (RuntimeException e) {
-			// TODO handle possibly non-fatal error
-			throw e;
-		}
 		catch (Throwable t) {
-			// TODO handle fatal error
-			t.printStackTrace();
-			throw new RuntimeException(t);
+			localInvocation.handleInternalThrowable(t);
+			if (t instanceof Error) {
+				// TODO handle fatal error
+				throw (Error) t;
+			}
 		}
 	}
 
+	/** Registers the current thread as waiting in its call chain. A new chain is started if the thread isn't in one,
+	 * or if another thread is already waiting in it.
+	 */
 	private WaitingThread registerWaitingThread() {
 		Thread thread = Thread.currentThread();
-		long id = thread.getId();
-		WaitingThread waitingThread = waitingThreads.get(id);
-		if (waitingThread == null) {
-			waitingThread = new WaitingThread(thread);
-			waitingThreads.put(id, waitingThread);
+		CallContext callContext = CallContext.current();
+		WaitingThread waitingThread = null;
+		if (callContext != null) {
+			waitingThread = waitingThreads.get(callContext.getId());
+			if (waitingThread == null) {
+				WaitingThread newWaitingThread = new WaitingThread(thread, callContext);
+				waitingThread = waitingThreads.putIfAbsent(callContext.getId(), newWaitingThread);
+				if (waitingThread == null) {
+					waitingThread = newWaitingThread;
+				}
+			}
+		}
+
+		if (waitingThread == null || waitingThread.getThread() != thread) {
+			waitingThread = WaitingThread.startCallContext(thread);
+			waitingThreads.put(waitingThread.getCallContext().getId(), waitingThread);
 		}
 		waitingThread.incrementDepth();
 		return waitingThread;
 	}
 
-	public void unregisterWaitingThread(WaitingThread waitingThread) {
-		waitingThread.decrementDepth();
-		if (waitingThread.getDepth() == 0) {
-			waitingThreads.remove(waitingThread.getId());
+	private void unregisterWaitingThread(WaitingThread waitingThread) {
+		if (waitingThread.decrementDepth(this)) {
+			waitingThreads.remove(waitingThread.getCallContext().getId(), waitingThread);
+			waitingThread.leaveCallContext();
 		}
 	}
 
 	public Object toOutgoing(Object object, Class<?> parameterType) throws Exception {
+		return toOutgoing(object, parameterType, false);
+	}
+
+	/** Converts an argument to the object to send.
+	 * @param byValue true if the parameter is annotated to be passed by value
+	 */
+	public Object toOutgoing(Object object, Class<?> parameterType, boolean byValue) throws Exception {
 		if (object instanceof RemoteInvocationProxy) {
 			// send a reference to the remote object
 			return ((RemoteInvocationProxy) object).getRemoteObjectReference();
 		}
-		else if (bidirectional && parameterType.isInterface()) {
+		else if (bidirectional && parameterType.isInterface() && object != null && !isPassedByValue(parameterType, object, byValue)) {
 			// send a reference to the local object
 			return getObjectDescriptor(object);
 		}
@@ -166,6 +391,58 @@ public class DJavaContext {
 		}
 	}
 
+	/** Returns true if a value should be sent as a copy, rather than as a reference.
+	 * @param declaredType the declared parameter or return type
+	 * @param byValue true if the parameter or method is annotated to be passed by value
+	 * @see ByValue
+	 */
+	static boolean isPassedByValue(Class<?> declaredType, Object value, boolean byValue) {
+		if (byValue || declaredType.isPrimitive() || value instanceof String || value instanceof Enum || BOXED_TYPES.contains(value.getClass())) {
+			return true;
+		}
+		else if (value.getClass().isAnnotationPresent(ByValue.class)) {
+			return true;
+		}
+		else {
+			// a proxy could only be made for interfaces or Object
+			return !declaredType.isInterface() && declaredType != Object.class && value instanceof Serializable;
+		}
+	}
+
+	/** Resolves a promise for the result of a pipelined call, and performs the invocations waiting on it.
+	 * @param result the response to the call, which must be a reference to the result, or null if the call failed
+	 * @param throwable the exception thrown by the call, or null if it succeeded
+	 */
+	void resolvePromise(int promiseId, Serializable result, Throwable throwable) {
+		long targetId = 0;
+		if (throwable == null) {
+			if (result instanceof ObjectDescriptor) {
+				targetId = ((ObjectDescriptor) result).getId();
+			}
+			else if (result == null) {
+				throwable = new NullPointerException("The result of the pipelined call is null");
+			}
+			else {
+				throwable = new IllegalStateException("The result of the pipelined call was passed by value");
+			}
+		}
+
+		for (PromiseTable.WaitingInvocation waitingInvocation : promises.resolve(promiseId, targetId, throwable)) {
+			invokeLocally(waitingInvocation.getInvocation(), waitingInvocation.getExecutor());
+		}
+	}
+
+	/** Removes the promises for the results of pipelined calls, once the peer no longer uses them. Invocations still
+	 * waiting on a promise that was never resolved fail.
+	 */
+	public void releasePromises(int[] promiseIds) {
+		for (int promiseId : promiseIds) {
+			for (PromiseTable.WaitingInvocation waitingInvocation : promises.remove(promiseId)) {
+				invokeLocally(waitingInvocation.getInvocation(), waitingInvocation.getExecutor());
+			}
+		}
+	}
+
 	/** Converts an incoming object to one that can be used for a return value. */
 	public Object fromResponse(DJavaConnection connection, Object result) {
 		if (result instanceof ObjectDescriptor) {
@@ -176,32 +453,63 @@ public class DJavaContext {
 		}
 	}
 
-	public <T> T awaitResponse(Future<T> futureResponse) throws ExecutionException {
-		T response;
+	/** Sends a request and waits for the response, performing the requests in the same call chain that the peer sends
+	 * meanwhile. The request is sent once the thread is waiting in a chain, so that it carries the chain's id.
+	 * @param sendRequest sends the request, and returns the future response
+	 * @param deadline the time to stop waiting at, or {@link Deadline#NONE}
+	 * @throws DeadlineExceededException if the response doesn't arrive before the deadline
+	 * @see CallContext
+	 */
+	public <T> T awaitResponse(Callable<? extends Future<T>> sendRequest, long deadline) throws Exception {
 		WaitingThread waitingThread = registerWaitingThread();
 		try {
-			for (;;) {
-				try {
-					response = futureResponse.get();
-					break;
-				}
-				catch (InterruptedException ex) {
-					waitingThread.performInvocation(this);
-				}
-			}
+			return waitingThread.await(sendRequest.call(), deadline, this);
 		}
 		finally {
 			unregisterWaitingThread(waitingThread);
 		}
+	}
+
+	/** Wraps an object so that it is compared by identity, rather than with its own equals and hashCode. */
+	private static class IdentityKey {
+		private Object object;
+
+		public IdentityKey(Object object) {
+			this.object = object;
+		}
 
-		return response;
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof IdentityKey && ((IdentityKey) obj).object == object;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(object);
+		}
 	}
 
-	void removeProxyReference(RemoteObjectReference remoteObjectReference) {
-		proxyReferences.remove(remoteObjectReference);
+	/** Releases the remote object of a collected proxy, unless a new proxy has replaced it.
+	 * Done while holding the proxy's entry, so that a new proxy created at the same time cancels the release.
+	 */
+	void releaseProxyReference(final DJavaConnection connection, final ProxyReference proxyReference) {
+		proxyReferences.computeIfPresent(proxyReference.getRemoteObjectReference(), new BiFunction<RemoteObjectReference, ProxyReference, ProxyReference>() {
+			public ProxyReference apply(RemoteObjectReference remoteObjectReference, ProxyReference existingReference) {
+				if (existingReference != proxyReference) {
+					return existingReference;
+				}
+				connection.addPendingRelease(remoteObjectReference.getId());
+				return null;
+			}
+		});
 	}
 
-	public void removeLocalObject(int id) {
-		localObjects.remove(id);
+	public void removeLocalObject(long id) {
+		Object target = localObjects.get(id);
+		if (target != null) {
+			// the object gets a new id if it is exported again
+			objectDescriptors.remove(new IdentityKey(target), new RemoteObjectReference(id));
+			localObjects.remove(id);
+		}
 	}
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.util.concurrent.Callable;
+
+/** The time by which remote calls must complete, in milliseconds since the epoch. A deadline applies to the calls a
+ * thread makes while it is current, and is sent with each request, so the calls the peer makes while performing it
+ * share it. The peer drops requests whose deadline has passed before they are performed, so the clocks of the peers
+ * should be roughly synchronized.
+ * @see Timeout
+ */
+public class Deadline {
+	/** The deadline of calls that may take any amount of time. */
+	public static final long NONE = Long.MAX_VALUE;
+
+	private static ThreadLocal<Long> current = new ThreadLocal<Long>();
+
+	private Deadline() {
+	}
+
+	/** Performs calls that must complete within a timeout. A deadline that is already current is kept if it is
+	 * earlier.
+	 */
+	public static <T> T withTimeout(long timeoutMillis, Callable<T> calls) throws Exception {
+		long outer = enter(Math.min(current(), fromTimeout(timeoutMillis)));
+		try {
+			return calls.call();
+		}
+		finally {
+			restore(outer);
+		}
+	}
+
+	/** Returns the deadline of the current thread, or {@link #NONE} if it has none. */
+	public static long current() {
+		Long deadline = current.get();
+		return deadline != null ? deadline : NONE;
+	}
+
+	/** Makes a deadline current, and returns the one it replaces. */
+	static long enter(long deadline) {
+		long outer = current();
+		restore(deadline);
+		return outer;
+	}
+
+	/** Makes a deadline that was replaced by {@link #enter(long)} current again. */
+	static void restore(long deadline) {
+		if (deadline != NONE) {
+			current.set(deadline);
+		}
+		else {
+			current.remove();
+		}
+	}
+
+	/** Returns the deadline of a call made now, with a timeout of 0 meaning none. */
+	static long forCall(long timeoutMillis) {
+		return Math.min(current(), fromTimeout(timeoutMillis));
+	}
+
+	private static long fromTimeout(long timeoutMillis) {
+		if (timeoutMillis <= 0) {
+			return NONE;
+		}
+		long now = System.currentTimeMillis();
+		return timeoutMillis < NONE - now ? now + timeoutMillis : NONE;
+	}
+
+	/** Returns true if a deadline has passed. */
+	public static boolean hasPassed(long deadline) {
+		return deadline != NONE && System.currentTimeMillis() >= deadline;
+	}
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+/** Thrown when a remote call does not complete before its deadline.
+ * @see Deadline
+ */
+public class DeadlineExceededException extends RuntimeException {
+	private static final long serialVersionUID = 1;
+
+	public DeadlineExceededException() {
+		super("Deadline exceeded.");
+	}
+
+	public DeadlineExceededException(String methodName) {
+		super("Could not invoke '" + methodName + "'. Deadline exceeded.");
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Executors for performing incoming invocations.
+ * Set with {@link DJavaConnection#setDispatchExecutor(Executor)} or
+ * {@link com.ryanberdeen.djava.postal.DJavaRequestHandler#setDispatchExecutor(Executor)}.
+ */
+public class DispatchExecutors {
+	private static final Executor DIRECT = new Executor() {
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	private DispatchExecutors() {}
+
+	/** Returns an executor that performs invocations on the thread that delivered them. This is the default.
+	 */
+	public static Executor direct() {
+		return DIRECT;
+	}
+
+	/** Returns a pool of platform threads. When all the threads are busy and queueCapacity invocations are waiting,
+	 * further invocations are performed on the thread that delivered them, which stops it reading more until they
+	 * complete.
+	 * @param threads the maximum number of threads
+	 * @param queueCapacity the maximum number of invocations waiting for a thread
+	 */
+	public static ExecutorService boundedPool(int threads, int queueCapacity) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), new DispatchThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/** Returns a pool of platform threads that rejects invocations it has no room for. When all the threads are busy
+	 * and queueCapacity invocations are waiting, further invocations fail immediately with a
+	 * {@link ServerBusyException}, rather than adding to the wait of every caller.
+	 * @param threads the maximum number of invocations performed at once
+	 * @param queueCapacity the maximum number of invocations waiting for a thread
+	 */
+	public static ExecutorService admissionControlledPool(int threads, int queueCapacity) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), new DispatchThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/** Returns an executor that performs each invocation on a new virtual thread. Virtual threads require Java 21;
+	 * on earlier versions, an unbounded pool of platform threads is returned instead.
+	 */
+	public static ExecutorService virtualThreads() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (Exception ex) {
+			return Executors.newCachedThreadPool(new DispatchThreadFactory());
+		}
+	}
+
+	private static class DispatchThreadFactory implements ThreadFactory {
+		private static AtomicInteger threadNumber = new AtomicInteger(1);
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "dJava dispatch " + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/** The public methods of an exported class, resolved once.
+ * Local invocations look up their method here instead of reflecting on the target for every call.
+ * <p>
+ * Methods are kept as {@link Method}s rather than method handles. Invocations are made with an argument array on a
+ * method chosen at run time, which on Java 8 is no faster through a method handle than through a reflective call once
+ * the JVM has generated its accessor, and the invocation needs the Method for its annotations anyway.
+ */
+class DispatchTable {
+	/** Maps from method name to the methods with that name. */
+	private HashMap<String, Entry[]> entriesByName = new HashMap<String, Entry[]>();
+
+	/** The method table of the interfaces the class is exported with. */
+	private MethodTable methodTable;
+
+	/** The implementations of the methods in the method table, by index. */
+	private Method[] indexedMethods;
+
+	/** The implementations of the methods whose values are sent along with the object. */
+	private Method[] prefetchedMethods;
+
+	DispatchTable(Class<?> targetClass) {
+		for (Method method : targetClass.getMethods()) {
+			if (method.isBridge()) {
+				continue;
+			}
+
+			if (!Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+				// public methods of non-public classes, such as anonymous ones, can't be invoked without this
+				method.setAccessible(true);
+			}
+
+			entriesByName.put(method.getName(), add(entriesByName.get(method.getName()), new Entry(method)));
+		}
+
+		methodTable = MethodTable.forInterfaces(targetClass.getInterfaces());
+		indexedMethods = new Method[methodTable.size()];
+		for (int i = 0; i < indexedMethods.length; i++) {
+			Method interfaceMethod = methodTable.getMethod(i);
+			try {
+				indexedMethods[i] = getMethod(interfaceMethod.getName(), interfaceMethod.getParameterTypes());
+			}
+			catch (NoSuchMethodException ex) {
+				// can't happen for a concrete class
+			}
+		}
+
+		ArrayList<Method> prefetched = new ArrayList<Method>();
+		for (Method method : indexedMethods) {
+			if (method != null && MethodInfo.get(method).isPrefetched()) {
+				prefetched.add(method);
+			}
+		}
+		prefetchedMethods = prefetched.toArray(new Method[prefetched.size()]);
+	}
+
+	public MethodTable getMethodTable() {
+		return methodTable;
+	}
+
+	/** Returns the methods whose values are sent along with the object.
+	 * @see Prefetch
+	 */
+	public Method[] getPrefetchedMethods() {
+		return prefetchedMethods;
+	}
+
+	/** Returns the method with the specified name and parameter types.
+	 * @throws NoSuchMethodException if the class has no such public method
+	 */
+	public Method getMethod(String methodName, Class<?>[] parameterTypes) throws NoSuchMethodException {
+		Entry[] entries = entriesByName.get(methodName);
+		if (entries != null) {
+			for (Entry entry : entries) {
+				if (Arrays.equals(entry.parameterTypes, parameterTypes)) {
+					return entry.method;
+				}
+			}
+		}
+
+		throw new NoSuchMethodException(methodName + Arrays.toString(parameterTypes));
+	}
+
+	/** Returns the implementation of the method with the specified index in the method table.
+	 * @throws NoSuchMethodException if the index is not in the method table
+	 */
+	public Method getMethod(int methodIndex) throws NoSuchMethodException {
+		if (methodIndex >= 0 && methodIndex < indexedMethods.length && indexedMethods[methodIndex] != null) {
+			return indexedMethods[methodIndex];
+		}
+
+		throw new NoSuchMethodException("#" + methodIndex);
+	}
+
+	/** Adds an entry, replacing one with the same parameter types if the new method has a more specific return type.
+	 */
+	private static Entry[] add(Entry[] entries, Entry entry) {
+		if (entries == null) {
+			return new Entry[] {entry};
+		}
+
+		for (int i = 0; i < entries.length; i++) {
+			if (Arrays.equals(entries[i].parameterTypes, entry.parameterTypes)) {
+				if (entries[i].method.getReturnType().isAssignableFrom(entry.method.getReturnType())) {
+					entries[i] = entry;
+				}
+				return entries;
+			}
+		}
+
+		Entry[] result = new Entry[entries.length + 1];
+		System.arraycopy(entries, 0, result, 0, entries.length);
+		result[entries.length] = entry;
+		return result;
+	}
+
+	private static class Entry {
+		private Method method;
+
+		/** Cached because Method.getParameterTypes() copies the array. */
+		private Class<?>[] parameterTypes;
+
+		public Entry(Method method) {
+			this.method = method;
+			this.parameterTypes = method.getParameterTypes();
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Maps from id to exported object.
+ * Objects are stored in an array of slots. An id is the object's slot in the low 32 bits, with the slot's generation
+ * in the high 32 bits. The generation changes each time a slot is reused, so an id for an object that is no longer
+ * exported does not find the object that replaced it. Freed slots are reused in the order they were freed, so a slot
+ * is not reused until every slot freed before it has been, and a slot whose generation would wrap is retired instead
+ * of being reused. Lookups take no lock and don't allocate.
+ * <p>
+ * Each object may have a lease, which expires unless it is renewed.
+ */
+class ExportTable {
+	private static final long SLOT_MASK = 0xFFFFFFFFL;
+	private static final int GENERATION_SHIFT = 32;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/** The most slots the table can have, which is as large as an array can be. */
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+	private volatile AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+
+	/** The generation each slot will use next. Guarded by this. */
+	private int[] generations = new int[INITIAL_CAPACITY];
+
+	/** Queue of free slots below nextSlot, as a ring buffer, oldest first. Guarded by this. */
+	private int[] freeSlots = new int[INITIAL_CAPACITY];
+	private int freeSlotHead = 0;
+	private int freeSlotCount = 0;
+
+	/** Slot 0 is never used, so that no object has id 0. */
+	private int nextSlot = 1;
+
+	private int size = 0;
+
+	/** Adds an object, returning its id.
+	 * @param leaseExpiry the time at which the object's lease expires, or {@link Long#MAX_VALUE} if it has none
+	 */
+	public synchronized long add(Object target, long leaseExpiry) {
+		int slot;
+		if (freeSlotCount > 0) {
+			slot = freeSlots[freeSlotHead];
+			freeSlotHead = (freeSlotHead + 1) % freeSlots.length;
+			freeSlotCount--;
+		}
+		else {
+			if (nextSlot == MAX_CAPACITY) {
+				throw new IllegalStateException("Export table is full: " + size + " objects exported");
+			}
+			slot = nextSlot++;
+			if (slot == slots.length()) {
+				grow();
+			}
+		}
+
+		long id = ((long) generations[slot] << GENERATION_SHIFT) | slot;
+		slots.set(slot, new Entry(id, target, leaseExpiry));
+		size++;
+		return id;
+	}
+
+	/** Returns the object with an id, or null if there is none. */
+	public Object get(long id) {
+		Entry entry = getEntry(id);
+		return entry != null ? entry.target : null;
+	}
+
+	/** Extends the lease of the object with an id. Returns false if the object is no longer in the table. */
+	public synchronized boolean renew(long id, long leaseExpiry) {
+		Entry entry = getEntry(id);
+		if (entry == null) {
+			return false;
+		}
+		if (entry.leaseExpiry < leaseExpiry) {
+			entry.leaseExpiry = leaseExpiry;
+		}
+		return true;
+	}
+
+	/** Returns the ids of the objects whose leases expired before a time. */
+	public long[] getExpiredIds(long time) {
+		return getIds(time, false);
+	}
+
+	/** Returns the ids of all the objects. */
+	public long[] getIds() {
+		return getIds(0, true);
+	}
+
+	private synchronized long[] getIds(long expiredBefore, boolean all) {
+		long[] result = new long[size];
+		int count = 0;
+		for (int slot = 1; slot < nextSlot; slot++) {
+			Entry entry = slots.get(slot);
+			if (entry != null && (all || entry.leaseExpiry < expiredBefore)) {
+				result[count++] = entry.id;
+			}
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	private Entry getEntry(long id) {
+		long slot = id & SLOT_MASK;
+		AtomicReferenceArray<Entry> slots = this.slots;
+		if (slot >= slots.length()) {
+			return null;
+		}
+		Entry entry = slots.get((int) slot);
+		return entry != null && entry.id == id ? entry : null;
+	}
+
+	/** Removes the object with an id. Returns the object, or null if there is none. */
+	public synchronized Object remove(long id) {
+		Entry entry = getEntry(id);
+		return entry != null ? remove(entry) : null;
+	}
+
+	/** Removes the object with an id if its lease expired before a time. Returns the object, or null if it was not
+	 * removed.
+	 */
+	public synchronized Object removeIfExpired(long id, long time) {
+		// the lease may have been renewed since the id was found to have expired
+		Entry entry = getEntry(id);
+		return entry != null && entry.leaseExpiry < time ? remove(entry) : null;
+	}
+
+	private Object remove(Entry entry) {
+		long id = entry.id;
+		int slot = (int) (id & SLOT_MASK);
+		slots.set(slot, null);
+		size--;
+		if (++generations[slot] == 0) {
+			// every id the slot can have has been used, so it is never used again
+			return entry.target;
+		}
+
+		if (freeSlotCount == freeSlots.length) {
+			int[] newFreeSlots = new int[freeSlots.length * 2];
+			for (int i = 0; i < freeSlotCount; i++) {
+				newFreeSlots[i] = freeSlots[(freeSlotHead + i) % freeSlots.length];
+			}
+			freeSlots = newFreeSlots;
+			freeSlotHead = 0;
+		}
+		freeSlots[(freeSlotHead + freeSlotCount) % freeSlots.length] = slot;
+		freeSlotCount++;
+		return entry.target;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	private void grow() {
+		int capacity = (int) Math.min((long) slots.length() * 2, MAX_CAPACITY);
+		AtomicReferenceArray<Entry> newSlots = new AtomicReferenceArray<Entry>(capacity);
+		for (int i = 0; i < slots.length(); i++) {
+			newSlots.set(i, slots.get(i));
+		}
+		int[] newGenerations = new int[capacity];
+		System.arraycopy(generations, 0, newGenerations, 0, generations.length);
+		generations = newGenerations;
+		slots = newSlots;
+	}
+
+	private static class Entry {
+		private final long id;
+		private final Object target;
+
+		/** Guarded by the table. */
+		private long leaseExpiry;
+
+		public Entry(long id, Object target, long leaseExpiry) {
+			this.id = id;
+			this.target = target;
+			this.leaseExpiry = leaseExpiry;
+		}
+	}
+}
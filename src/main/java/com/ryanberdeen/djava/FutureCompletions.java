@@ -0,0 +1,173 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/** Adapts futures that don't support completion callbacks to {@link CompletableFuture}.
+ * Futures that are already completion stages are adapted directly, and futures that are already done are completed
+ * immediately. Other futures are watched by a single daemon thread, so any number of them can be outstanding without
+ * a thread blocked on each. Each watched future is checked on its own schedule, often while it is young and less often
+ * as it ages, so a future is noticed within an eighth of its age, and never more than 1ms, after it completes. Only the
+ * futures that are due are checked, so many long outstanding futures don't make every check slower.
+ * <p>
+ * Watching adds latency, so callers that block anyway, such as synchronous calls, should wait on the future directly.
+ */
+public class FutureCompletions {
+	private static final long MIN_POLL_INTERVAL = TimeUnit.MICROSECONDS.toNanos(50);
+	private static final long MAX_POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/** The fraction of its age a future may wait to be checked again. */
+	private static final int POLL_AGE_DIVISOR = 8;
+
+	/** How early a future may be checked, so that futures due at about the same time are checked together. */
+	private static final long POLL_SLACK = TimeUnit.MICROSECONDS.toNanos(250);
+
+	private static LinkedBlockingQueue<WatchedFuture<?>> newFutures = new LinkedBlockingQueue<WatchedFuture<?>>();
+
+	static {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				watch();
+			}
+		}, "dJava future watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private FutureCompletions() {}
+
+	/** Returns a completable future that completes when the future does.
+	 * Dependent stages added without an executor may run on the watcher thread, so slow ones should use the
+	 * asynchronous variants.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> CompletableFuture<T> toCompletableFuture(Future<T> future) {
+		if (future instanceof CompletionStage) {
+			return ((CompletionStage<T>) future).toCompletableFuture();
+		}
+
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		if (future.isDone()) {
+			complete(future, result);
+		}
+		else {
+			newFutures.add(new WatchedFuture<T>(future, result));
+		}
+		return result;
+	}
+
+	private static <T> void complete(Future<T> future, CompletableFuture<T> result) {
+		try {
+			result.complete(future.get());
+		}
+		catch (ExecutionException ex) {
+			result.completeExceptionally(ex.getCause());
+		}
+		catch (CancellationException ex) {
+			result.cancel(false);
+		}
+		catch (InterruptedException ex) {
+			// can't happen, the future is done
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void watch() {
+		PriorityQueue<WatchedFuture<?>> watchedFutures = new PriorityQueue<WatchedFuture<?>>(16, new Comparator<WatchedFuture<?>>() {
+			public int compare(WatchedFuture<?> a, WatchedFuture<?> b) {
+				return Long.signum(a.nextCheck - b.nextCheck);
+			}
+		});
+		ArrayList<WatchedFuture<?>> rescheduledFutures = new ArrayList<WatchedFuture<?>>();
+		for (;;) {
+			try {
+				WatchedFuture<?> newFuture;
+				if (watchedFutures.isEmpty()) {
+					newFuture = newFutures.take();
+				}
+				else {
+					// wait for the next check, or for a new future, which is checked without waiting for the others
+					newFuture = newFutures.poll(watchedFutures.peek().nextCheck - System.nanoTime(), TimeUnit.NANOSECONDS);
+				}
+				while (newFuture != null) {
+					watchedFutures.add(newFuture);
+					newFuture = newFutures.poll();
+				}
+
+				long now = System.nanoTime();
+				rescheduledFutures.clear();
+				WatchedFuture<?> watchedFuture;
+				while ((watchedFuture = watchedFutures.peek()) != null && watchedFuture.nextCheck - now <= POLL_SLACK) {
+					watchedFutures.poll();
+					if (watchedFuture.result.isDone()) {
+						// cancelled by the caller
+					}
+					else if (watchedFuture.future.isDone()) {
+						watchedFuture.complete();
+					}
+					else {
+						watchedFuture.scheduleCheck(now);
+						rescheduledFutures.add(watchedFuture);
+					}
+				}
+				watchedFutures.addAll(rescheduledFutures);
+			}
+			catch (InterruptedException ex) {
+				// ignore, the watcher runs for the life of the VM
+			}
+			catch (RuntimeException ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	private static class WatchedFuture<T> {
+		private Future<T> future;
+		private CompletableFuture<T> result;
+		private long started = System.nanoTime();
+
+		/** When the future is next checked, in {@link System#nanoTime()} time. New futures are checked immediately. */
+		private long nextCheck = started;
+
+		public WatchedFuture(Future<T> future, CompletableFuture<T> result) {
+			this.future = future;
+			this.result = result;
+		}
+
+		public void scheduleCheck(long now) {
+			long interval = (now - started) / POLL_AGE_DIVISOR;
+			nextCheck = now + Math.max(MIN_POLL_INTERVAL, Math.min(interval, MAX_POLL_INTERVAL));
+		}
+
+		public void complete() {
+			FutureCompletions.complete(future, result);
+		}
+	}
+}
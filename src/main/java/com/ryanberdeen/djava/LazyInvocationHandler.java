@@ -0,0 +1,88 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/** Invocation handler for a named remote object that has not been looked up.
+ * The first synchronous call is sent naming the object, and the peer resolves the name and performs the call in the
+ * same round trip. Calls that don't wait for a response look the object up first. Once the object's id is known,
+ * calls are made on a proxy for it.
+ */
+class LazyInvocationHandler implements InvocationHandler {
+	private DJavaConnection connection;
+	private String name;
+	private Class<?> interfaceClass;
+
+	/** The proxy for the resolved object, or null until the name is resolved. */
+	private volatile Object target;
+
+	public LazyInvocationHandler(DJavaConnection connection, String name, Class<?> interfaceClass) {
+		this.connection = connection;
+		this.name = name;
+		this.interfaceClass = interfaceClass;
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		Object target = this.target;
+		if (target == null) {
+			if (isSentByName(method)) {
+				RemoteInvocation invocation = new RemoteInvocation(name, method, args);
+				try {
+					return connection.invoke(invocation);
+				}
+				finally {
+					if (invocation.getTargetId() != 0) {
+						this.target = connection.proxy(interfaceClass, invocation.getTargetId(), invocation.getMethodTableFingerprint());
+					}
+				}
+			}
+			target = resolve(method);
+		}
+
+		try {
+			return method.invoke(target, args);
+		}
+		catch (InvocationTargetException ex) {
+			throw ex.getCause();
+		}
+	}
+
+	/** Returns true if a call can be sent naming the object. Only calls whose response is awaited learn the id. */
+	private boolean isSentByName(Method method) {
+		if (method.getDeclaringClass() == RemoteInvocationProxy.class || connection.isRecordingBatch()) {
+			return false;
+		}
+		MethodInfo methodInfo = MethodInfo.get(method);
+		return !methodInfo.isAsynchronous() && !methodInfo.isFutureResult() && !methodInfo.isPipelined();
+	}
+
+	/** Looks up the object, and returns a proxy for it. */
+	private Object resolve(Method method) {
+		Object result = connection.proxy(name);
+		if (result == null) {
+			throw new TargetNotFoundException(name, method.getName());
+		}
+		target = result;
+		return result;
+	}
+}
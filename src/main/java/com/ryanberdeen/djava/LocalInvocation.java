@@ -23,57 +23,292 @@ import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.BiConsumer;
 
 
 /** Stores values necessary to invoke a method on a target.
  *
  */
 public abstract class LocalInvocation {
-	private long requestingThreadId;
-	private Long targetThreadId;
+	/** The call chain the invocation is part of, or null if it isn't part of one. */
+	private CallContext callContext;
 	protected DJavaConnection dJavaConnection;
-	protected Integer targetId;
+	protected long targetId;
 	protected String methodName;
+	protected int methodIndex;
 	private Class<?>[] parameterTypes;
 	protected Object[] argumentSpecifications;
 	@SuppressWarnings("unchecked")
 	private InvocationListener invocationListener;
 
-	public LocalInvocation(DJavaConnection dJavaConnection, long requestingThreadId, Long targetThreadId, Integer targetId, String methodName, Class<?>[] parameterTypes, Object[] argumentSpecifications, InvocationListener<?> invocationListener) {
+	/** The promise the target is the result of, or 0 if the target is specified by id. */
+	private int targetPromiseId;
+
+	/** The exception thrown by the call the target is the result of, if it failed. */
+	private Throwable targetFailure;
+
+	/** The promise to resolve with the result, or 0 if there is none. */
+	private int resultPromiseId;
+
+	/** The time by which the requester needs the result. */
+	private long deadline = Deadline.NONE;
+
+	/** The id the requester can cancel the invocation with, or 0 if it can't be cancelled. */
+	private int invocationId;
+
+	/** The task that performs the invocation, and the executor it was submitted to. */
+	private Runnable dispatchTask;
+	private Executor dispatchExecutor;
+
+	/** The thread performing the invocation. The cancellation fields are guarded by this. */
+	private Thread thread;
+	private boolean finished;
+	private boolean cancelled;
+
+	/** True if the invocation counts toward its connection's limit. Guarded by this. */
+	private boolean admitted;
+
+	/** True if the invocation was not performed because there was no room for it. */
+	private boolean rejected;
+
+	/** Creates an invocation of a method specified by name and parameter types, or, if methodIndex is not -1, by its index in the
+	 * target's method table.
+	 */
+	public LocalInvocation(DJavaConnection dJavaConnection, Long callContextId, long targetId, String methodName, int methodIndex, Class<?>[] parameterTypes, Object[] argumentSpecifications, InvocationListener<?> invocationListener) {
 		this.dJavaConnection = dJavaConnection;
-		this.requestingThreadId = requestingThreadId;
-		this.targetThreadId = targetThreadId;
+		this.callContext = callContextId != null ? CallContext.forId(callContextId) : null;
 		this.argumentSpecifications = argumentSpecifications;
 		this.methodName = methodName;
+		this.methodIndex = methodIndex;
 		this.targetId = targetId;
 		this.parameterTypes = parameterTypes;
 		this.invocationListener = invocationListener;
 	}
 
-	Long getTargetThreadId() {
-		return targetThreadId;
+	/** Sets the arguments of an invocation whose arguments are decoded after it is created.
+	 * @param parameterTypes the parameter types of the method, or null if it is specified by index
+	 */
+	public void setArguments(Class<?>[] parameterTypes, Object[] argumentSpecifications) {
+		this.parameterTypes = parameterTypes;
+		this.argumentSpecifications = argumentSpecifications;
+	}
+
+	CallContext getCallContext() {
+		return callContext;
+	}
+
+	/** Sets the promises used to pipeline the invocation.
+	 * @param targetPromiseId the promise for the target, or 0 if the target is specified by id
+	 * @param resultPromiseId the promise for the result, or 0 if calls on the result are not pipelined
+	 */
+	public void setPromiseIds(int targetPromiseId, int resultPromiseId) {
+		this.targetPromiseId = targetPromiseId;
+		this.resultPromiseId = resultPromiseId;
+	}
+
+	/** Sets the time by which the requester needs the result. The invocation is dropped if it hasn't started by then,
+	 * and calls made while performing it share the deadline.
+	 * @see Deadline
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/** Sets the id the requester can cancel the invocation with.
+	 * @see DJavaConnection#cancelLocalInvocation(int)
+	 */
+	public void setInvocationId(int invocationId) {
+		this.invocationId = invocationId;
+	}
+
+	int getInvocationId() {
+		return invocationId;
+	}
+
+	/** Records the task that performs the invocation, so that it can be removed from the executor's queue if the
+	 * invocation is cancelled before it starts.
+	 */
+	void setDispatchTask(Runnable dispatchTask, Executor dispatchExecutor) {
+		this.dispatchTask = dispatchTask;
+		this.dispatchExecutor = dispatchExecutor;
+	}
+
+	/** Cancels the invocation. If it hasn't started, it is dropped and fails with a CancellationException. If it is
+	 * being performed, its thread is interrupted.
+	 */
+	void cancel() {
+		synchronized (this) {
+			if (finished || cancelled) {
+				return;
+			}
+			cancelled = true;
+			if (thread != null) {
+				thread.interrupt();
+				return;
+			}
+		}
+
+		if (dispatchExecutor instanceof ThreadPoolExecutor) {
+			((ThreadPoolExecutor) dispatchExecutor).remove(dispatchTask);
+		}
+		fail(new CancellationException("Invocation of '" + getMethodDescription() + "' cancelled."));
+	}
+
+	synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/** Accepts the invocation for dispatch. If its connection is at its limit, the invocation is rejected instead.
+	 * @return false if the invocation was rejected
+	 */
+	boolean admit() {
+		if (!dJavaConnection.admitInvocation()) {
+			reject();
+			return false;
+		}
+		synchronized (this) {
+			admitted = true;
+		}
+		return true;
+	}
+
+	/** Fails the invocation without performing it, because there is no room for it. */
+	void reject() {
+		synchronized (this) {
+			if (finished || cancelled) {
+				// a cancelled invocation was answered when it was cancelled, but may have been admitted since
+				releaseAdmission();
+				return;
+			}
+			finished = true;
+		}
+		rejected = true;
+		if (invocationId != 0) {
+			dJavaConnection.removeCancellableInvocation(invocationId, this);
+		}
+		fail(new ServerBusyException(getMethodDescription()));
+	}
+
+	/** Returns true if the invocation was rejected by admission control rather than performed. A
+	 * ServerBusyException thrown by the target itself does not count, as the target has run.
+	 */
+	protected boolean isRejected() {
+		return rejected;
+	}
+
+	/** Fails an invocation that won't be performed, answering the requester and failing the calls pipelined on its
+	 * result.
+	 */
+	public void fail(Exception exception) {
+		releaseAdmission();
+		resolveResultPromise(null, exception);
+		try {
+			handleThrowable(exception);
+		}
+		catch (Exception ex) {
+			handleInternalThrowable(ex);
+		}
+	}
+
+	private void releaseAdmission() {
+		synchronized (this) {
+			if (!admitted) {
+				return;
+			}
+			admitted = false;
+		}
+		dJavaConnection.releaseInvocation();
+	}
+
+	private String getMethodDescription() {
+		return methodName != null ? methodName : "#" + methodIndex;
+	}
+
+	/** Claims the invocation for the current thread. Returns false if it has been cancelled. */
+	private synchronized boolean start() {
+		if (cancelled) {
+			return false;
+		}
+		thread = Thread.currentThread();
+		return true;
+	}
+
+	private void finish() {
+		synchronized (this) {
+			thread = null;
+			finished = true;
+			if (cancelled) {
+				// the interrupt was meant for the invocation, not for whatever the thread does next
+				Thread.interrupted();
+			}
+		}
+		if (invocationId != 0) {
+			dJavaConnection.removeCancellableInvocation(invocationId, this);
+		}
+		releaseAdmission();
+	}
+
+	int getTargetPromiseId() {
+		return targetPromiseId;
+	}
+
+	/** Sets the target once the promise for it has been resolved. */
+	void setTarget(long targetId) {
+		this.targetId = targetId;
+		targetPromiseId = 0;
+	}
+
+	/** Fails the invocation, because the call its target is the result of failed. */
+	void setTargetFailure(Throwable targetFailure) {
+		this.targetFailure = targetFailure;
+		targetPromiseId = 0;
 	}
 
 	void invoke() throws Throwable {
-		Long outerRequestingThreadId = dJavaConnection.getRequestingThreadId();
-		dJavaConnection.setRequestingThreadId(requestingThreadId);
+		if (!start()) {
+			// cancelled while it was waiting to be performed, and already answered
+			releaseAdmission();
+			return;
+		}
+
+		// calls made while performing the invocation are part of its chain
+		CallContext outerCallContext = CallContext.enter(callContext);
+		long outerDeadline = Deadline.enter(deadline);
 
 		try {
 			Object result;
 
+			if (targetFailure != null) {
+				resolveResultPromise(null, targetFailure);
+				handleThrowable(targetFailure);
+				return;
+			}
+
+			if (Deadline.hasPassed(deadline)) {
+				// the requester has stopped waiting, so the work would be wasted
+				DeadlineExceededException deadlineExceeded = new DeadlineExceededException(getMethodDescription());
+				resolveResultPromise(null, deadlineExceeded);
+				handleThrowable(deadlineExceeded);
+				return;
+			}
+
 			Object target = dJavaConnection.getTarget(targetId);
 			if (target == null) {
-				throw new TargetNotFoundException(targetId, methodName);
+				throw new TargetNotFoundException(targetId, getMethodDescription());
 			}
 
-			Class<?> targetClass = target.getClass();
-			Method method = targetClass.getMethod(methodName, parameterTypes);
+			DispatchTable dispatchTable = dJavaConnection.getDispatchTable(target.getClass());
+			Method method = methodIndex != -1 ? dispatchTable.getMethod(methodIndex) : dispatchTable.getMethod(methodName, parameterTypes);
 
 			Object[] arguments = buildArguments();
 
-			// TODO why is this necessary
-			method.setAccessible(true);
-
 			try {
 				if (invocationListener != null) {
 					/* if the method is synchronized, the order in which it is entered is significant */
@@ -94,6 +329,7 @@ public abstract class LocalInvocation {
 			}
 			catch (InvocationTargetException e) {
 				Throwable cause = e.getCause();
+				resolveResultPromise(null, cause);
 				if (cause instanceof Exception) {
 					handleThrowable(cause);
 					return;
@@ -104,19 +340,37 @@ public abstract class LocalInvocation {
 			}
 
 			Class<?> returnType = method.getReturnType();
-			handleResult(toResponse(returnType, result));
+			MethodInfo methodInfo = MethodInfo.get(method);
+			if (methodInfo.isFutureResult() && result != null) {
+				// respond when the future completes, rather than holding this thread until it does
+				handleResultWhenComplete((CompletionStage<?>) result, getFutureValueType(method), methodInfo.isResultByValue());
+				return;
+			}
+			Serializable response = isResponseRequired() || resultPromiseId != 0 ? toResponse(returnType, result, methodInfo.isResultByValue()) : null;
+			resolveResultPromise(response, null);
+			handleResult(response);
 		}
 		catch (Exception ex) {
+			resolveResultPromise(null, ex);
 			handleInternalThrowable(ex);
 		}
 		catch (Throwable ex) {
+			resolveResultPromise(null, ex);
 			throw ex;
 		}
 		finally {
-			dJavaConnection.setRequestingThreadId(outerRequestingThreadId);
+			Deadline.restore(outerDeadline);
+			CallContext.restore(outerCallContext);
+			finish();
 		}
 	}
 
+	/** Returns false if the requester does not need the result, in which case null is passed to handleResult.
+	 */
+	protected boolean isResponseRequired() {
+		return true;
+	}
+
 	protected abstract void handleResult(Serializable result) throws Exception;
 	protected abstract void handleThrowable(Throwable t) throws Exception;
 	protected abstract void handleInternalThrowable(Throwable t);
@@ -149,15 +403,70 @@ public abstract class LocalInvocation {
 		return result;
 	}
 
-	private Serializable toResponse(Class<?> returnType, Object result) throws Exception {
+	/** Handles the result of a future returned by the target once it completes. The result is handled on the thread that
+	 * completes the future.
+	 */
+	private void handleResultWhenComplete(CompletionStage<?> future, final Class<?> valueType, final boolean byValue) {
+		future.whenComplete(new BiConsumer<Object, Throwable>() {
+			public void accept(Object value, Throwable throwable) {
+				try {
+					if (throwable == null) {
+						Serializable response = isResponseRequired() || resultPromiseId != 0 ? toResponse(valueType, value, byValue) : null;
+						resolveResultPromise(response, null);
+						handleResult(response);
+					}
+					else {
+						if (throwable instanceof CompletionException && throwable.getCause() != null) {
+							throwable = throwable.getCause();
+						}
+						resolveResultPromise(null, throwable);
+						if (throwable instanceof Exception) {
+							handleThrowable(throwable);
+						}
+						else {
+							handleInternalThrowable(throwable);
+						}
+					}
+				}
+				catch (Exception ex) {
+					resolveResultPromise(null, ex);
+					handleInternalThrowable(ex);
+				}
+			}
+		});
+	}
+
+	/** Resolves the promise for the result, if there is one, so that the invocations waiting on it are performed. */
+	private void resolveResultPromise(Serializable result, Throwable throwable) {
+		if (resultPromiseId != 0) {
+			int promiseId = resultPromiseId;
+			resultPromiseId = 0;
+			dJavaConnection.resolvePromise(promiseId, result, throwable);
+		}
+	}
+
+	/** Returns the type of the value of the future a method returns. */
+	private static Class<?> getFutureValueType(Method method) {
+		Type returnType = method.getGenericReturnType();
+		if (returnType instanceof ParameterizedType) {
+			Type valueType = ((ParameterizedType) returnType).getActualTypeArguments()[0];
+			if (valueType instanceof ParameterizedType) {
+				valueType = ((ParameterizedType) valueType).getRawType();
+			}
+			if (valueType instanceof Class) {
+				return (Class<?>) valueType;
+			}
+		}
+		return Object.class;
+	}
+
+	private Serializable toResponse(Class<?> returnType, Object result, boolean byValue) throws Exception {
 		if (result != null) {
-			// TODO probably shouldn't serialize enums
-			// TODO serialize wrapper types when method doesn't return primitive
-			if (returnType == String.class || returnType.isPrimitive() || Enum.class.isAssignableFrom(returnType)) {
+			if (DJavaContext.isPassedByValue(returnType, result, byValue)) {
 				return (Serializable) result;
 			}
 			else {
-				return dJavaConnection.getObjectDescriptor(result);
+				return dJavaConnection.getResultObjectDescriptor(result);
 			}
 		}
 		else {
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** What dJava needs to know about a method, read from its signature and annotations once and cached.
+ */
+class MethodInfo {
+	private static ConcurrentHashMap<Method, MethodInfo> methodInfos = new ConcurrentHashMap<Method, MethodInfo>();
+
+	private boolean asynchronous;
+	private boolean futureResult;
+	private boolean pipelined;
+	private boolean prefetched;
+	private long cacheTtl = -1;
+	private boolean idempotent;
+	private long timeout;
+	private boolean resultByValue;
+	private boolean[] argumentsByValue;
+
+	private MethodInfo(Method method) {
+		asynchronous = method.isAnnotationPresent(Asynchronous.class);
+		Class<?> returnType = method.getReturnType();
+		futureResult = returnType == CompletableFuture.class || returnType == CompletionStage.class;
+		pipelined = returnType.isInterface() && !futureResult && method.isAnnotationPresent(Pipelined.class);
+		argumentsByValue = new boolean[method.getParameterTypes().length];
+		boolean prefetchAnnotated = false;
+
+		// annotations on the interface apply to the implementation, and the other way around
+		for (Method declaration : getDeclarations(method)) {
+			resultByValue |= declaration.isAnnotationPresent(ByValue.class);
+			prefetchAnnotated |= declaration.isAnnotationPresent(Prefetch.class);
+
+			Annotation[][] parameterAnnotations = declaration.getParameterAnnotations();
+			for (int i = 0; i < parameterAnnotations.length; i++) {
+				for (Annotation annotation : parameterAnnotations[i]) {
+					if (annotation instanceof ByValue) {
+						argumentsByValue[i] = true;
+					}
+				}
+			}
+		}
+
+		prefetched = prefetchAnnotated && argumentsByValue.length == 0 && returnType != void.class && !futureResult;
+
+		Cacheable cacheable = method.getAnnotation(Cacheable.class);
+		if (cacheable != null && returnType != void.class && !asynchronous && !futureResult && !pipelined) {
+			cacheTtl = Math.max(cacheable.ttl(), 0);
+		}
+		idempotent = method.isAnnotationPresent(Idempotent.class) && !asynchronous && !futureResult && !pipelined;
+
+		Timeout timeoutAnnotation = method.getAnnotation(Timeout.class);
+		timeout = timeoutAnnotation != null ? Math.max(timeoutAnnotation.value(), 0) : 0;
+	}
+
+	/** Returns the method, and the methods it overrides or implements. */
+	private static ArrayList<Method> getDeclarations(Method method) {
+		ArrayList<Method> result = new ArrayList<Method>();
+		result.add(method);
+		addDeclarations(method.getDeclaringClass(), method, result);
+		return result;
+	}
+
+	private static void addDeclarations(Class<?> type, Method method, ArrayList<Method> result) {
+		ArrayList<Class<?>> supertypes = new ArrayList<Class<?>>(Arrays.asList(type.getInterfaces()));
+		if (type.getSuperclass() != null) {
+			supertypes.add(type.getSuperclass());
+		}
+		for (Class<?> supertype : supertypes) {
+			try {
+				Method declaration = supertype.getDeclaredMethod(method.getName(), method.getParameterTypes());
+				if (!result.contains(declaration)) {
+					result.add(declaration);
+				}
+			}
+			catch (NoSuchMethodException ex) {
+				// not declared here, but may be further up
+			}
+			addDeclarations(supertype, method, result);
+		}
+	}
+
+	public static MethodInfo get(Method method) {
+		MethodInfo methodInfo = methodInfos.get(method);
+		if (methodInfo == null) {
+			methodInfo = new MethodInfo(method);
+			MethodInfo existing = methodInfos.putIfAbsent(method, methodInfo);
+			if (existing != null) {
+				methodInfo = existing;
+			}
+		}
+		return methodInfo;
+	}
+
+	public boolean isAsynchronous() {
+		return asynchronous;
+	}
+
+	/** Returns true if the method returns a future for its result. */
+	public boolean isFutureResult() {
+		return futureResult;
+	}
+
+	/** Returns true if the method returns a promise for its result.
+	 * @see Pipelined
+	 */
+	public boolean isPipelined() {
+		return pipelined;
+	}
+
+	/** Returns true if the method's value is sent along with its object.
+	 * @see Prefetch
+	 */
+	public boolean isPrefetched() {
+		return prefetched;
+	}
+
+	/** Returns how long the method's results may be reused, 0 if they don't expire, or -1 if they are not cached.
+	 * @see Cacheable
+	 */
+	public long getCacheTtl() {
+		return cacheTtl;
+	}
+
+	/** Returns true if identical calls that are outstanding at the same time can share a request.
+	 * @see Idempotent
+	 */
+	public boolean isIdempotent() {
+		return idempotent;
+	}
+
+	/** Returns how long a call may take, in milliseconds, or 0 if it may take any amount of time.
+	 * @see Timeout
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/** Returns true if the method is annotated to return its result by value. */
+	public boolean isResultByValue() {
+		return resultByValue;
+	}
+
+	/** Returns true if a parameter is annotated to be passed by value. */
+	public boolean isArgumentByValue(int index) {
+		return argumentsByValue[index];
+	}
+}
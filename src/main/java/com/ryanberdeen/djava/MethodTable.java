@@ -0,0 +1,140 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Assigns an index to each method of a set of proxied interfaces.
+ * Both peers compute the table from the interfaces in an {@link ObjectDescriptor}. The descriptor carries the
+ * fingerprint of the exporting peer's table, so an index is only sent when both peers agree on what it means.
+ */
+class MethodTable {
+	/** Indicates that a descriptor has no method table. */
+	public static final long NO_FINGERPRINT = 0;
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private static ConcurrentHashMap<List<Class<?>>, MethodTable> methodTables = new ConcurrentHashMap<List<Class<?>>, MethodTable>();
+
+	private Method[] methods;
+	private HashMap<Method, Integer> indexes = new HashMap<Method, Integer>();
+	private long fingerprint;
+
+	private MethodTable(Class<?>[] interfaces) {
+		ArrayList<Method> methodList = new ArrayList<Method>();
+		HashMap<String, Integer> indexesBySignature = new HashMap<String, Integer>();
+		long hash = FNV_OFFSET_BASIS;
+
+		for (Class<?> interfaceClass : interfaces) {
+			Method[] interfaceMethods = interfaceClass.getMethods();
+			String[] signatures = new String[interfaceMethods.length];
+			Integer[] order = new Integer[interfaceMethods.length];
+			for (int i = 0; i < interfaceMethods.length; i++) {
+				signatures[i] = getSignature(interfaceMethods[i]);
+				order[i] = i;
+			}
+			Arrays.sort(order, new SignatureComparator(signatures));
+
+			for (Integer i : order) {
+				Integer index = indexesBySignature.get(signatures[i]);
+				if (index == null) {
+					index = methodList.size();
+					methodList.add(interfaceMethods[i]);
+					indexesBySignature.put(signatures[i], index);
+
+					for (int j = 0; j < signatures[i].length(); j++) {
+						hash = (hash ^ signatures[i].charAt(j)) * FNV_PRIME;
+					}
+					hash = (hash ^ ';') * FNV_PRIME;
+				}
+				indexes.put(interfaceMethods[i], index);
+			}
+		}
+
+		methods = methodList.toArray(new Method[methodList.size()]);
+		fingerprint = hash != NO_FINGERPRINT ? hash : 1;
+	}
+
+	/** Returns the method table for a set of interfaces, creating it if necessary. */
+	public static MethodTable forInterfaces(Class<?>[] interfaces) {
+		List<Class<?>> key = Arrays.asList(interfaces);
+		MethodTable methodTable = methodTables.get(key);
+		if (methodTable == null) {
+			methodTable = new MethodTable(interfaces);
+			MethodTable existing = methodTables.putIfAbsent(key, methodTable);
+			if (existing != null) {
+				methodTable = existing;
+			}
+		}
+		return methodTable;
+	}
+
+	/** Returns the index of the method, or -1 if the method is not in the table. */
+	public int getIndex(Method method) {
+		Integer index = indexes.get(method);
+		return index != null ? index : -1;
+	}
+
+	/** Returns the interface method with the specified index. */
+	public Method getMethod(int index) {
+		return methods[index];
+	}
+
+	public int size() {
+		return methods.length;
+	}
+
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	private static String getSignature(Method method) {
+		StringBuilder result = new StringBuilder(method.getName());
+		result.append('(');
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		for (int i = 0; i < parameterTypes.length; i++) {
+			if (i > 0) {
+				result.append(',');
+			}
+			result.append(parameterTypes[i].getName());
+		}
+		result.append(')');
+		return result.toString();
+	}
+
+	private static class SignatureComparator implements Comparator<Integer> {
+		private String[] signatures;
+
+		public SignatureComparator(String[] signatures) {
+			this.signatures = signatures;
+		}
+
+		public int compare(Integer a, Integer b) {
+			return signatures[a].compareTo(signatures[b]);
+		}
+	}
+}
@@ -20,15 +20,25 @@
 package com.ryanberdeen.djava;
 
 import java.io.Serializable;
+import java.util.HashMap;
 
 public class ObjectDescriptor extends RemoteObjectReference implements Serializable {
 	private static final long serialVersionUID = 1L;
 	
 	private Class<?>[] proxiedClasses;
+	private long methodTableFingerprint;
+
+	/** Maps from getter name to value, or null if no values were prefetched. */
+	private HashMap<String, Serializable> prefetchedValues;
+	
+	ObjectDescriptor(Class<?>[] proxiedClasses, long id) {
+		this(proxiedClasses, id, MethodTable.NO_FINGERPRINT);
+	}
 	
-	ObjectDescriptor(Class<?>[] proxiedClasses, int id) {
+	ObjectDescriptor(Class<?>[] proxiedClasses, long id, long methodTableFingerprint) {
 		super(id);
 		this.proxiedClasses = proxiedClasses;
+		this.methodTableFingerprint = methodTableFingerprint;
 	}
 	
 	/** Returns an array of interfaces implemented by the object.
@@ -37,6 +47,27 @@ public class ObjectDescriptor extends RemoteObjectReference implements Serializa
 		return proxiedClasses;
 	}
 	
+	/** Returns the fingerprint of the exporting peer's method table for the proxied classes.
+	 * Descriptors from peers that don't support method indexes have no fingerprint.
+	 */
+	public long getMethodTableFingerprint() {
+		return methodTableFingerprint;
+	}
+	
+	/** Returns the values of the object's prefetched getters, by method name, or null if none were sent.
+	 * @see Prefetch
+	 */
+	public HashMap<String, Serializable> getPrefetchedValues() {
+		return prefetchedValues;
+	}
+
+	/** Returns a copy of this descriptor that carries the specified prefetched values. */
+	ObjectDescriptor withPrefetchedValues(HashMap<String, Serializable> prefetchedValues) {
+		ObjectDescriptor result = new ObjectDescriptor(proxiedClasses, getId(), methodTableFingerprint);
+		result.prefetchedValues = prefetchedValues;
+		return result;
+	}
+
 	public RemoteObjectReference getRemoteObjectReference() {
 		return new RemoteObjectReference(getId());
 	}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Indicates that a getter's value should be sent along with its object, so the proxy can answer it without a call.
+ * When an object is returned by reference, the peer calls its prefetched getters and includes the values that are
+ * passed by value in the object descriptor. The values are a snapshot taken when the object was returned; they are
+ * refreshed whenever the object is returned again, and can be discarded with
+ * {@link DJavaConnection#invalidatePrefetchedValues(Object)}, after which the getters are invoked remotely.
+ * <p>
+ * Only methods without parameters that return a value can be prefetched.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Prefetch {
+
+}
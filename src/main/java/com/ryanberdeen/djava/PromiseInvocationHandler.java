@@ -0,0 +1,130 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/** Invocation handler for the promised result of a pipelined call.
+ * Until the result arrives, calls are sent to the peer naming the promise. Afterwards, they are made on the result.
+ */
+class PromiseInvocationHandler implements InvocationHandler {
+	private DJavaConnection connection;
+	private int promiseId;
+	private CompletableFuture<Object> result;
+
+	/** The number of calls that may be sent naming the promise and have not completed. Incremented before checking for
+	 * the result, so that the promise isn't released while a call may still name it.
+	 */
+	private AtomicInteger pendingCalls = new AtomicInteger();
+	private AtomicBoolean released = new AtomicBoolean();
+
+	private BiConsumer<Object, Throwable> callCompletion = new BiConsumer<Object, Throwable>() {
+		public void accept(Object value, Throwable throwable) {
+			callCompleted();
+		}
+	};
+
+	public PromiseInvocationHandler(DJavaConnection connection, int promiseId, CompletableFuture<Object> result) {
+		this.connection = connection;
+		this.promiseId = promiseId;
+		this.result = result;
+		result.whenComplete(new BiConsumer<Object, Throwable>() {
+			public void accept(Object value, Throwable throwable) {
+				releaseIfUnused();
+			}
+		});
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == RemoteInvocationProxy.class) {
+			// the reference is only known once the result arrives
+			return ((RemoteInvocationProxy) getResult()).getRemoteObjectReference();
+		}
+
+		pendingCalls.incrementAndGet();
+		boolean completed = true;
+		try {
+			if (result.isDone()) {
+				try {
+					return method.invoke(getResult(), args);
+				}
+				catch (InvocationTargetException ex) {
+					throw ex.getCause();
+				}
+			}
+
+			RemoteInvocation invocation = new RemoteInvocation(promiseId, method, args);
+			Object value = connection.invoke(invocation);
+			if (invocation.isFutureResult() || invocation.isPipelined()) {
+				// the call completes when its response arrives
+				completed = false;
+				getCompletion(value).whenComplete(callCompletion);
+			}
+			return value;
+		}
+		finally {
+			if (completed) {
+				callCompleted();
+			}
+		}
+	}
+
+	private CompletableFuture<?> getCompletion(Object value) {
+		if (value instanceof CompletableFuture) {
+			return (CompletableFuture<?>) value;
+		}
+		else {
+			return ((PromiseInvocationHandler) Proxy.getInvocationHandler(value)).result;
+		}
+	}
+
+	private Object getResult() throws Throwable {
+		try {
+			Object value = result.get();
+			if (value == null) {
+				throw new NullPointerException("The result of the pipelined call is null");
+			}
+			return value;
+		}
+		catch (ExecutionException ex) {
+			throw ex.getCause();
+		}
+	}
+
+	private void callCompleted() {
+		pendingCalls.decrementAndGet();
+		releaseIfUnused();
+	}
+
+	/** Releases the promise once the result has arrived and no calls naming it are outstanding. */
+	private void releaseIfUnused() {
+		if (result.isDone() && pendingCalls.get() == 0 && released.compareAndSet(false, true)) {
+			connection.addPendingPromiseRelease(promiseId);
+		}
+	}
+}
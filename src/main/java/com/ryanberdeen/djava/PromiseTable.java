@@ -0,0 +1,134 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/** The results of pipelined calls, by the promise ids the peer assigned to them.
+ * Invocations on a promise that has not been resolved wait in the table until it is. A promise may be used before the
+ * call that resolves it arrives.
+ */
+class PromiseTable {
+	private ConcurrentHashMap<Integer, Promise> promises = new ConcurrentHashMap<Integer, Promise>();
+
+	/** Sets the target of an invocation on a promise, or holds the invocation until the promise is resolved.
+	 * @return true if the target was set, or false if the invocation is waiting
+	 */
+	public boolean resolveTarget(LocalInvocation invocation, Executor executor) {
+		Promise promise = getPromise(invocation.getTargetPromiseId());
+		synchronized (promise) {
+			if (!promise.resolved) {
+				promise.waitingInvocations.add(new WaitingInvocation(invocation, executor));
+				return false;
+			}
+		}
+		promise.applyTo(invocation);
+		return true;
+	}
+
+	/** Resolves a promise, returning the invocations that were waiting on it, with their targets set.
+	 * @param targetId the id of the exported result, used if failure is null
+	 * @param failure the exception thrown by the call, or null if it succeeded
+	 */
+	public List<WaitingInvocation> resolve(int promiseId, long targetId, Throwable failure) {
+		return resolve(getPromise(promiseId), targetId, failure);
+	}
+
+	private List<WaitingInvocation> resolve(Promise promise, long targetId, Throwable failure) {
+		ArrayList<WaitingInvocation> waitingInvocations;
+		synchronized (promise) {
+			if (promise.resolved) {
+				return new ArrayList<WaitingInvocation>();
+			}
+			promise.resolved = true;
+			promise.targetId = targetId;
+			promise.failure = failure;
+			waitingInvocations = promise.waitingInvocations;
+			promise.waitingInvocations = null;
+		}
+
+		for (WaitingInvocation waitingInvocation : waitingInvocations) {
+			promise.applyTo(waitingInvocation.invocation);
+		}
+		return waitingInvocations;
+	}
+
+	/** Removes a promise the peer will no longer use. If it was never resolved, it fails, and the invocations that were
+	 * waiting on it are returned, with their target failures set.
+	 */
+	public List<WaitingInvocation> remove(int promiseId) {
+		Promise promise = promises.remove(promiseId);
+		if (promise == null) {
+			return new ArrayList<WaitingInvocation>();
+		}
+		// invocations that found the promise before it was removed fail rather than waiting forever
+		return resolve(promise, 0, new IllegalStateException("Promise " + promiseId + " was released before it was resolved"));
+	}
+
+	private Promise getPromise(int promiseId) {
+		Promise promise = promises.get(promiseId);
+		if (promise == null) {
+			promise = new Promise();
+			Promise existing = promises.putIfAbsent(promiseId, promise);
+			if (existing != null) {
+				promise = existing;
+			}
+		}
+		return promise;
+	}
+
+	private static class Promise {
+		private boolean resolved = false;
+		private long targetId;
+		private Throwable failure;
+		private ArrayList<WaitingInvocation> waitingInvocations = new ArrayList<WaitingInvocation>();
+
+		/** Sets the target of an invocation. Only called once the promise is resolved. */
+		public void applyTo(LocalInvocation invocation) {
+			if (failure != null) {
+				invocation.setTargetFailure(failure);
+			}
+			else {
+				invocation.setTarget(targetId);
+			}
+		}
+	}
+
+	static class WaitingInvocation {
+		private LocalInvocation invocation;
+		private Executor executor;
+
+		public WaitingInvocation(LocalInvocation invocation, Executor executor) {
+			this.invocation = invocation;
+			this.executor = executor;
+		}
+
+		public LocalInvocation getInvocation() {
+			return invocation;
+		}
+
+		public Executor getExecutor() {
+			return executor;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/** Weak reference to a proxy, used to release the remote object once the proxy has been collected.
+ * Collected proxies are released by a single daemon thread, rather than by finalization.
+ */
+class ProxyReference extends WeakReference<RemoteInvocationProxy> {
+	private static ReferenceQueue<RemoteInvocationProxy> queue = new ReferenceQueue<RemoteInvocationProxy>();
+
+	static {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				for (;;) {
+					try {
+						((ProxyReference) queue.remove()).release();
+					}
+					catch (InterruptedException ex) {
+						// ignore, the thread runs for the life of the VM
+					}
+					catch (RuntimeException ex) {
+						ex.printStackTrace();
+					}
+				}
+			}
+		}, "dJava proxy reaper");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private DJavaConnection connection;
+	private RemoteObjectReference remoteObjectReference;
+
+	public ProxyReference(RemoteInvocationProxy proxy, DJavaConnection connection, RemoteObjectReference remoteObjectReference) {
+		super(proxy, queue);
+		this.connection = connection;
+		this.remoteObjectReference = remoteObjectReference;
+	}
+
+	public RemoteObjectReference getRemoteObjectReference() {
+		return remoteObjectReference;
+	}
+
+	private void release() {
+		connection.releaseProxyReference(this);
+	}
+}
@@ -20,26 +20,102 @@
 package com.ryanberdeen.djava;
 
 import java.lang.reflect.Method;
+import java.util.HashMap;
 
 public class RemoteInvocation {
+	private static HashMap<Class<?>, Object> defaultResults = new HashMap<Class<?>, Object>();
+
+	static {
+		defaultResults.put(boolean.class, false);
+		defaultResults.put(byte.class, (byte) 0);
+		defaultResults.put(char.class, (char) 0);
+		defaultResults.put(short.class, (short) 0);
+		defaultResults.put(int.class, 0);
+		defaultResults.put(long.class, 0L);
+		defaultResults.put(float.class, 0F);
+		defaultResults.put(double.class, 0D);
+	}
+
 	private RemoteObjectReference target;
+	private int targetPromiseId;
+	private int resultPromiseId;
+	private String targetName;
+	private long methodTableFingerprint = MethodTable.NO_FINGERPRINT;
 	private Method method;
+	private int methodIndex;
 	private Object[] arguments;
+	private long deadline = Deadline.NONE;
 
-	RemoteInvocation(RemoteObjectReference target, Method method, Object[] arguments) {
+	RemoteInvocation(RemoteObjectReference target, Method method, int methodIndex, Object[] arguments) {
 		this.arguments = arguments;
 		this.method = method;
+		this.methodIndex = methodIndex;
 		this.target = target;
 	}
 
-	public Integer getTargetId() {
-		return target.getId();
+	/** Creates an invocation on the result of a pipelined call that has not arrived. The method is sent by name, as
+	 * the result's method table is not known.
+	 */
+	RemoteInvocation(int targetPromiseId, Method method, Object[] arguments) {
+		this(null, method, -1, arguments);
+		this.targetPromiseId = targetPromiseId;
+	}
+
+	/** Creates an invocation on a named object that has not been looked up. The method is sent by name, as the
+	 * object's method table is not known.
+	 */
+	RemoteInvocation(String targetName, Method method, Object[] arguments) {
+		this(null, method, -1, arguments);
+		this.targetName = targetName;
+	}
+
+	/** Returns the id of the target, or 0 if the target is the result of a pipelined call. */
+	public long getTargetId() {
+		return target != null ? target.getId() : 0;
+	}
+
+	/** Returns the name of the target, or null if the target is specified by id. */
+	public String getTargetName() {
+		return targetName;
+	}
+
+	/** Sets the target of an invocation on a named object, once the peer has resolved the name.
+	 * @param methodTableFingerprint the fingerprint of the peer's method table for the object
+	 */
+	public void setResolvedTarget(long targetId, long methodTableFingerprint) {
+		target = new RemoteObjectReference(targetId);
+		this.methodTableFingerprint = methodTableFingerprint;
+	}
+
+	/** Returns the fingerprint of the method table of a target resolved by name. */
+	long getMethodTableFingerprint() {
+		return methodTableFingerprint;
+	}
+
+	/** Returns the id of the promise for the target, or 0 if the target is specified by id. */
+	public int getTargetPromiseId() {
+		return targetPromiseId;
+	}
+
+	/** Returns the id of the promise for the result, or 0 if the call is not pipelined. */
+	public int getResultPromiseId() {
+		return resultPromiseId;
+	}
+
+	void setResultPromiseId(int resultPromiseId) {
+		this.resultPromiseId = resultPromiseId;
 	}
 
 	public String getMethodName() {
 		return method.getName();
 	}
 
+	/** Returns the index of the method in the method table agreed on with the peer, or -1 if there is none.
+	 */
+	public int getMethodIndex() {
+		return methodIndex;
+	}
+
 	public Object[] getArguments() {
 		return arguments;
 	}
@@ -48,7 +124,75 @@ public class RemoteInvocation {
 		return method.getParameterTypes();
 	}
 
+	/** Returns the value to return for the invocation when its result is not yet available.
+	 * This is null, or zero or false for primitive return types.
+	 */
+	public Object getDefaultResult() {
+		return defaultResults.get(method.getReturnType());
+	}
+
+	/** Returns true if the method returns a future for its result, which is completed when the response arrives
+	 * instead of the caller waiting for it.
+	 */
+	public boolean isFutureResult() {
+		return MethodInfo.get(method).isFutureResult();
+	}
+
+	/** Returns true if the method returns a promise for its result.
+	 * @see Pipelined
+	 */
+	public boolean isPipelined() {
+		return MethodInfo.get(method).isPipelined();
+	}
+
+	Method getMethod() {
+		return method;
+	}
+
+	/** Returns how long the result may be reused, 0 if it doesn't expire, or -1 if it is not cached.
+	 * @see Cacheable
+	 */
+	public long getCacheTtl() {
+		return MethodInfo.get(method).getCacheTtl();
+	}
+
+	/** Returns true if identical outstanding calls can share a request.
+	 * @see Idempotent
+	 */
+	public boolean isIdempotent() {
+		return MethodInfo.get(method).isIdempotent();
+	}
+
+	/** Returns the time by which the call must complete, or {@link Deadline#NONE} if it has none.
+	 * @see Deadline
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/** Returns how long the call may take, or 0 if it may take any amount of time.
+	 * @see Timeout
+	 */
+	long getTimeout() {
+		return MethodInfo.get(method).getTimeout();
+	}
+
+	public Class<?> getReturnType() {
+		return method.getReturnType();
+	}
+
 	public boolean isAsynchronous() {
-		return method.getAnnotation(Asynchronous.class) != null;
+		return MethodInfo.get(method).isAsynchronous();
+	}
+
+	/** Returns true if the parameter is annotated to be passed by value.
+	 * @see ByValue
+	 */
+	public boolean isArgumentByValue(int index) {
+		return MethodInfo.get(method).isArgumentByValue(index);
 	}
 }
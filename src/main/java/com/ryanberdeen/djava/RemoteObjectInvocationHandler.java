@@ -21,6 +21,7 @@ package com.ryanberdeen.djava;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.util.Map;
 
 /** Invocation handler the invokes methods using a dJava connection.
  */
@@ -28,20 +29,32 @@ class RemoteObjectInvocationHandler implements InvocationHandler {
 	private DJavaConnection connection;
 	private RemoteObjectReference remoteObjectReference;
 
-	public RemoteObjectInvocationHandler(DJavaConnection connection, RemoteObjectReference remoteObjectReference) {
+	/** The method table agreed on with the peer, or null if methods must be sent by name. */
+	private MethodTable methodTable;
+
+	/** The values of the object's prefetched getters, by method name, or null if there are none. */
+	private volatile Map<String, ?> prefetchedValues;
+
+	public RemoteObjectInvocationHandler(DJavaConnection connection, RemoteObjectReference remoteObjectReference, MethodTable methodTable) {
 		this.connection = connection;
 		this.remoteObjectReference = remoteObjectReference;
+		this.methodTable = methodTable;
 	}
 
 	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
 		if (method.getName().equals("getRemoteObjectReference") && method.getParameterTypes().length == 0) {
 			return remoteObjectReference;
 		}
-		return connection.invokeRemotely(new RemoteInvocation(remoteObjectReference, method, args));
+		Map<String, ?> prefetchedValues = this.prefetchedValues;
+		if (prefetchedValues != null && args == null && prefetchedValues.containsKey(method.getName())) {
+			return prefetchedValues.get(method.getName());
+		}
+		int methodIndex = methodTable != null ? methodTable.getIndex(method) : -1;
+		return connection.invoke(new RemoteInvocation(remoteObjectReference, method, methodIndex, args));
 	}
 
-	@Override
-	protected void finalize() {
-		connection.finalizeRemoteObjectReference(remoteObjectReference);
+	/** Replaces the prefetched values, or discards them if null. */
+	public void setPrefetchedValues(Map<String, ?> prefetchedValues) {
+		this.prefetchedValues = prefetchedValues;
 	}
 }
@@ -21,12 +21,16 @@ package com.ryanberdeen.djava;
 
 import java.io.Serializable;
 
+/** Refers to an object exported by a peer, by its id.
+ * Ids are 64 bits wide, so references can't be exchanged with peers that use 32-bit ids; the serial version was
+ * changed with the id's type so that such a peer fails to read a reference instead of misreading it.
+ */
 public class RemoteObjectReference implements Serializable {
-	private static final long serialVersionUID = 1L;
+	private static final long serialVersionUID = 2L;
 	
-	private int id;
+	private long id;
 
-	public RemoteObjectReference(int id) {
+	public RemoteObjectReference(long id) {
 		this.id = id;
 	}
 	
@@ -34,7 +38,7 @@ public class RemoteObjectReference implements Serializable {
 		this.id = that.id;
 	}
 
-	public int getId() {
+	public long getId() {
 		return id;
 	}
 	
@@ -45,7 +49,8 @@ public class RemoteObjectReference implements Serializable {
 	
 	@Override
 	public int hashCode() {
-		// TODO not a very good hash
-		return id;
+		// ids differ mostly in their low bits, so spread them over the whole hash
+		long hash = id * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32));
 	}
 }
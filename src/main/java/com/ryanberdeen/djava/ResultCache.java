@@ -0,0 +1,167 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/** The results of cacheable remote calls, evicted in least recently used order once the cache is full.
+ * @see Cacheable
+ */
+class ResultCache {
+	/** Returned by {@link #get(CallKey)} when there is no usable result. */
+	static final Object MISS = new Object();
+
+	private static final int INVALIDATION_STRIPES = 64;
+
+	private int maxSize;
+
+	/** The entries, in order of last use. */
+	private LinkedHashMap<CallKey, Entry> entries = new LinkedHashMap<CallKey, Entry>(16, 0.75f, true);
+
+	/** Maps from remote object id to the keys of its entries, so they can be invalidated together. */
+	private HashMap<Long, HashSet<CallKey>> keysByTarget = new HashMap<Long, HashSet<CallKey>>();
+
+	/** Counts the invalidations of the remote objects whose ids fall in each stripe, so that a result that was being
+	 * fetched while its object was invalidated isn't cached. Guarded by this.
+	 */
+	private long[] invalidationCounts = new long[INVALIDATION_STRIPES];
+
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long evictionCount = 0;
+
+	public ResultCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/** Returns the cached result of a call, or {@link #MISS} if there is none or it has expired. */
+	public synchronized Object get(CallKey key) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.expiry <= System.currentTimeMillis()) {
+			remove(key);
+			entry = null;
+		}
+
+		if (entry != null) {
+			hitCount++;
+			return entry.result;
+		}
+		else {
+			missCount++;
+			return MISS;
+		}
+	}
+
+	/** Returns the invalidation generation of a remote object, to be passed to
+	 * {@link #put(CallKey, Object, long, long)} with the result of a call made after it was read.
+	 */
+	public synchronized long getGeneration(long targetId) {
+		return invalidationCounts[getStripe(targetId)];
+	}
+
+	/** Adds the result of a call, evicting the least recently used results if the cache is full. The result is not
+	 * added if the remote object may have been invalidated since the generation was read.
+	 */
+	public synchronized void put(CallKey key, Object result, long ttl, long generation) {
+		if (maxSize <= 0 || invalidationCounts[getStripe(key.getTargetId())] != generation) {
+			return;
+		}
+
+		entries.put(key, new Entry(result, ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE));
+		HashSet<CallKey> targetKeys = keysByTarget.get(key.getTargetId());
+		if (targetKeys == null) {
+			targetKeys = new HashSet<CallKey>();
+			keysByTarget.put(key.getTargetId(), targetKeys);
+		}
+		targetKeys.add(key);
+
+		evict();
+	}
+
+	/** Removes the results of calls on a remote object. */
+	public synchronized void invalidate(long targetId) {
+		invalidationCounts[getStripe(targetId)]++;
+		HashSet<CallKey> targetKeys = keysByTarget.remove(targetId);
+		if (targetKeys != null) {
+			for (CallKey key : targetKeys) {
+				entries.remove(key);
+			}
+		}
+	}
+
+	public synchronized void invalidateAll() {
+		for (int i = 0; i < invalidationCounts.length; i++) {
+			invalidationCounts[i]++;
+		}
+		entries.clear();
+		keysByTarget.clear();
+	}
+
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		evict();
+	}
+
+	public synchronized CacheStatistics getStatistics() {
+		return new CacheStatistics(hitCount, missCount, evictionCount, entries.size());
+	}
+
+	private static int getStripe(long targetId) {
+		return (int) (targetId ^ (targetId >>> 32)) & (INVALIDATION_STRIPES - 1);
+	}
+
+	private void evict() {
+		Iterator<CallKey> i = entries.keySet().iterator();
+		while (entries.size() > Math.max(maxSize, 0)) {
+			CallKey eldest = i.next();
+			i.remove();
+			removeTargetKey(eldest);
+			evictionCount++;
+		}
+	}
+
+	private void remove(CallKey key) {
+		entries.remove(key);
+		removeTargetKey(key);
+	}
+
+	private void removeTargetKey(CallKey key) {
+		HashSet<CallKey> targetKeys = keysByTarget.get(key.getTargetId());
+		if (targetKeys != null) {
+			targetKeys.remove(key);
+			if (targetKeys.isEmpty()) {
+				keysByTarget.remove(key.getTargetId());
+			}
+		}
+	}
+
+	private static class Entry {
+		private Object result;
+		private long expiry;
+
+		public Entry(Object result, long expiry) {
+			this.result = result;
+			this.expiry = expiry;
+		}
+	}
+}
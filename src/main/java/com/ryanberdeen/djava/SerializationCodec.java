@@ -0,0 +1,46 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/** Codec that uses Java serialization. Understood by every peer.
+ */
+public class SerializationCodec implements Codec {
+	public static final String CONTENT_TYPE = "application/x-java-serialized-object";
+
+	public String getContentType() {
+		return CONTENT_TYPE;
+	}
+
+	public ObjectOutput createOutput(OutputStream out) throws IOException {
+		return new ObjectOutputStream(out);
+	}
+
+	public ObjectInput createInput(InputStream in) throws IOException {
+		return new ObjectInputStream(in);
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/** Codec that uses Java serialization, but sends each class descriptor only once per connection.
+ * Each direction of a connection has a class table. The first time a class is written, its full descriptor, with its
+ * serializable fields, is sent with a new handle, so the peer reads instances with the writer's field layout as plain
+ * serialization does. Once the peer has acknowledged the handle, only the handle is sent.
+ * <p>
+ * Acknowledgments are carried in the messages sent in the other direction, so messages may be decoded in any order,
+ * or not at all. The stream header is omitted, as it would be the same for every message.
+ * <p>
+ * The class table is discarded and a new one started when it holds too many classes, or after too many messages, so
+ * it does not grow without bound. Instances hold the state of one connection, and must not be shared.
+ */
+public class SessionSerializationCodec implements Codec {
+	public static final String CONTENT_TYPE = "application/x-djava-session-serialized-object";
+
+	public static final int DEFAULT_MAX_CLASSES = 1024;
+
+	/** The number of class tables kept for each direction, so that late messages using the previous table can be decoded. */
+	private static final int RETAINED_INCOMING_TABLES = 2;
+
+	private int maxClasses;
+	private int maxMessages;
+
+	private OutgoingClassTable outgoingClassTable;
+	private int nextEpoch = 1;
+
+	/** Maps from epoch to the class table the peer is using. */
+	private HashMap<Integer, IncomingClassTable> incomingClassTables = new HashMap<Integer, IncomingClassTable>();
+	private int latestIncomingEpoch = 0;
+
+	public SessionSerializationCodec() {
+		this(DEFAULT_MAX_CLASSES, 0);
+	}
+
+	/** Creates a codec with the specified reset policy.
+	 * @param maxClasses the number of classes after which a new class table is started, or 0 for no limit
+	 * @param maxMessages the number of messages after which a new class table is started, or 0 for no limit
+	 */
+	public SessionSerializationCodec(int maxClasses, int maxMessages) {
+		this.maxClasses = maxClasses;
+		this.maxMessages = maxMessages;
+	}
+
+	public String getContentType() {
+		return CONTENT_TYPE;
+	}
+
+	public ObjectOutput createOutput(OutputStream out) throws IOException {
+		OutgoingClassTable classTable = getOutgoingClassTable();
+		DataOutputStream dataOut = new DataOutputStream(out);
+		dataOut.writeInt(classTable.epoch);
+
+		// acknowledge the classes the peer has sent
+		synchronized (this) {
+			IncomingClassTable incomingClassTable = incomingClassTables.get(latestIncomingEpoch);
+			dataOut.writeInt(latestIncomingEpoch);
+			dataOut.writeInt(incomingClassTable != null ? incomingClassTable.getKnownCount() : 0);
+		}
+		dataOut.flush();
+
+		return new Output(out, classTable);
+	}
+
+	public ObjectInput createInput(InputStream in) throws IOException {
+		DataInputStream dataIn = new DataInputStream(in);
+		int epoch = dataIn.readInt();
+		int acknowledgedEpoch = dataIn.readInt();
+		int acknowledgedCount = dataIn.readInt();
+
+		synchronized (this) {
+			if (outgoingClassTable != null && outgoingClassTable.epoch == acknowledgedEpoch) {
+				outgoingClassTable.acknowledge(acknowledgedCount);
+			}
+		}
+
+		return new Input(in, getIncomingClassTable(epoch));
+	}
+
+	/** Returns the class table for the next outgoing message, starting a new one if the reset policy requires it.
+	 */
+	private synchronized OutgoingClassTable getOutgoingClassTable() {
+		if (outgoingClassTable == null || (maxClasses > 0 && outgoingClassTable.size() >= maxClasses) || (maxMessages > 0 && outgoingClassTable.messageCount >= maxMessages)) {
+			outgoingClassTable = new OutgoingClassTable(nextEpoch++);
+		}
+		outgoingClassTable.messageCount++;
+		return outgoingClassTable;
+	}
+
+	private synchronized IncomingClassTable getIncomingClassTable(int epoch) {
+		IncomingClassTable classTable = incomingClassTables.get(epoch);
+		if (classTable == null) {
+			classTable = new IncomingClassTable();
+			incomingClassTables.put(epoch, classTable);
+			if (epoch > latestIncomingEpoch) {
+				latestIncomingEpoch = epoch;
+				Iterator<Map.Entry<Integer, IncomingClassTable>> i = incomingClassTables.entrySet().iterator();
+				while (i.hasNext()) {
+					if (i.next().getKey() <= epoch - RETAINED_INCOMING_TABLES) {
+						i.remove();
+					}
+				}
+			}
+		}
+		return classTable;
+	}
+
+	private static class OutgoingClassTable {
+		private int epoch;
+		private int messageCount = 0;
+		private HashMap<String, Integer> handles = new HashMap<String, Integer>();
+
+		/** The number of handles the peer is known to have. */
+		private int acknowledgedCount = 0;
+
+		public OutgoingClassTable(int epoch) {
+			this.epoch = epoch;
+		}
+
+		public synchronized int size() {
+			return handles.size();
+		}
+
+		/** Returns the handle for a class, or its complement if the class must be defined.
+		 */
+		public synchronized int getHandle(String className) {
+			Integer handle = handles.get(className);
+			if (handle == null) {
+				handle = handles.size();
+				handles.put(className, handle);
+			}
+			return handle < acknowledgedCount ? handle : ~handle;
+		}
+
+		public synchronized void acknowledge(int count) {
+			acknowledgedCount = Math.max(acknowledgedCount, count);
+		}
+	}
+
+	private static class IncomingClassTable {
+		private ArrayList<ObjectStreamClass> classes = new ArrayList<ObjectStreamClass>();
+		private int knownCount = 0;
+
+		public synchronized ObjectStreamClass get(int handle) throws InvalidClassException {
+			ObjectStreamClass result = handle < classes.size() ? classes.get(handle) : null;
+			if (result == null) {
+				throw new InvalidClassException("Unknown class handle " + handle);
+			}
+			return result;
+		}
+
+		public synchronized void define(int handle, ObjectStreamClass objectStreamClass) {
+			while (classes.size() <= handle) {
+				classes.add(null);
+			}
+			classes.set(handle, objectStreamClass);
+			while (knownCount < classes.size() && classes.get(knownCount) != null) {
+				knownCount++;
+			}
+		}
+
+		/** Returns the number of handles, starting from 0, that have all been defined. */
+		public synchronized int getKnownCount() {
+			return knownCount;
+		}
+	}
+
+	private static class Output extends ObjectOutputStream {
+		private OutgoingClassTable classTable;
+
+		public Output(OutputStream out, OutgoingClassTable classTable) throws IOException {
+			super(out);
+			this.classTable = classTable;
+		}
+
+		@Override
+		protected void writeStreamHeader() {
+			// the header is implied by the content type
+		}
+
+		@Override
+		protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+			int handle = classTable.getHandle(desc.getName());
+			writeInt(handle);
+			if (handle < 0) {
+				super.writeClassDescriptor(desc);
+			}
+		}
+	}
+
+	private static class Input extends ObjectInputStream {
+		private IncomingClassTable classTable;
+
+		public Input(InputStream in, IncomingClassTable classTable) throws IOException {
+			super(in);
+			this.classTable = classTable;
+		}
+
+		@Override
+		protected void readStreamHeader() {
+			// the header is implied by the content type
+		}
+
+		@Override
+		protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+			int handle = readInt();
+			if (handle >= 0) {
+				return classTable.get(handle);
+			}
+
+			// the descriptor as written, which is matched against the local class as each stream reads it
+			ObjectStreamClass result = super.readClassDescriptor();
+			classTable.define(~handle, result);
+			return result;
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			return ClassResolver.forName(desc.getName());
+		}
+	}
+}
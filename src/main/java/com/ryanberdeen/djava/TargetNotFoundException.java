@@ -22,7 +22,11 @@ package com.ryanberdeen.djava;
 public class TargetNotFoundException extends RuntimeException {
 	private static final long serialVersionUID = 1;
 
-	public TargetNotFoundException(Integer id, String methodName) {
+	public TargetNotFoundException(long id, String methodName) {
 		super("Could not invoke '" + methodName + "'. Target " + id + " not found.");
 	}
+
+	public TargetNotFoundException(String name, String methodName) {
+		super("Could not invoke '" + methodName + "'. Target '" + name + "' not found.");
+	}
 }
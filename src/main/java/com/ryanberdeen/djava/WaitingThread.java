@@ -19,40 +19,223 @@
 
 package com.ryanberdeen.djava;
 
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/** A thread waiting for the response to a remote invocation, and the requests in its call chain that the peer has sent
+ * it meanwhile. Requests are queued in the thread's mailbox and the thread is unparked to perform them, in the order
+ * they arrived. A thread blocked on a response that can't unpark it is interrupted instead, and that interrupt is
+ * absorbed, so only interrupts meant for the caller are seen afterwards.
+ * @see CallContext
+ */
 class WaitingThread {
 	private Thread thread;
+	private CallContext callContext;
+
+	/** True if the thread started a chain to wait in, which must be left when it stops waiting. */
+	private boolean startedCallContext;
+
+	/** The context the thread was in before starting a chain. */
+	private CallContext outerCallContext;
+
+	/** The number of nested calls the thread is waiting on. Guarded by this. */
 	private int depth = 0;
-	private LocalInvocation pendingInvocation;
 
-	public WaitingThread(Thread thread) {
+	/** True while the thread is blocked on a response that can't unpark it. Guarded by this. */
+	private boolean blockedOnFuture;
+
+	/** True if the thread has been interrupted to perform a callback. Guarded by this. */
+	private boolean interruptedForCallback;
+
+	private ConcurrentLinkedQueue<LocalInvocation> mailbox = new ConcurrentLinkedQueue<LocalInvocation>();
+
+	private BiConsumer<Object, Throwable> wakeUp = new BiConsumer<Object, Throwable>() {
+		public void accept(Object value, Throwable throwable) {
+			LockSupport.unpark(thread);
+		}
+	};
+
+	/** Creates a waiting thread for a chain the thread is already in. */
+	public WaitingThread(Thread thread, CallContext callContext) {
 		this.thread = thread;
+		this.callContext = callContext;
 	}
 
-	public long getId() {
-		return thread.getId();
+	/** Creates a waiting thread for a new chain, and makes it the thread's current context. */
+	public static WaitingThread startCallContext(Thread thread) {
+		WaitingThread waitingThread = new WaitingThread(thread, CallContext.create());
+		waitingThread.startedCallContext = true;
+		waitingThread.outerCallContext = CallContext.enter(waitingThread.callContext);
+		return waitingThread;
 	}
 
-	public void incrementDepth() {
+	public Thread getThread() {
+		return thread;
+	}
+
+	public CallContext getCallContext() {
+		return callContext;
+	}
+
+	/** Returns the thread to the context it was in before it started waiting. */
+	public void leaveCallContext() {
+		if (startedCallContext) {
+			CallContext.restore(outerCallContext);
+		}
+	}
+
+	public synchronized void incrementDepth() {
 		depth++;
 	}
 
-	public void decrementDepth() {
-		depth--;
+	/** Leaves a call. When leaving the outermost call, callbacks that arrived after the response are performed first.
+	 * @return true if the thread is no longer waiting
+	 */
+	public boolean decrementDepth(DJavaContext dJavaContext) {
+		for (;;) {
+			LocalInvocation invocation;
+			synchronized (this) {
+				invocation = depth == 1 ? mailbox.poll() : null;
+				if (invocation == null) {
+					depth--;
+					return depth == 0;
+				}
+			}
+			dJavaContext.invoke(invocation);
+		}
 	}
 
-	public int getDepth() {
-		return depth;
+	/** Adds a callback to the mailbox.
+	 * @return false if the thread is no longer waiting, in which case the callback must be performed some other way
+	 */
+	public synchronized boolean deliver(LocalInvocation invocation) {
+		if (depth == 0) {
+			return false;
+		}
+		mailbox.add(invocation);
+		if (blockedOnFuture && !interruptedForCallback) {
+			interruptedForCallback = true;
+			thread.interrupt();
+		}
+		else {
+			LockSupport.unpark(thread);
+		}
+		return true;
 	}
 
-	public synchronized void setPendingInvocation(LocalInvocation pendingInvocation) {
-		this.pendingInvocation = pendingInvocation;
-		thread.interrupt();
+	/** Performs callbacks until the response arrives, and returns it. Must be called by the waiting thread. If the
+	 * thread is interrupted while waiting, it keeps waiting, and its interrupt status is restored afterwards.
+	 * <p>
+	 * A response that is a completion stage unparks the thread when it arrives. Other futures can't, so the thread
+	 * blocks on the future itself, and is interrupted if a callback arrives meanwhile. The response is never handed to
+	 * another thread to watch, which would delay every call.
+	 * @param deadline the time to stop waiting at, or {@link Deadline#NONE}
+	 * @throws DeadlineExceededException if the deadline passes first, in which case the response is cancelled
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T await(Future<T> futureResponse, long deadline, DJavaContext dJavaContext) throws ExecutionException {
+		boolean completionStage = futureResponse instanceof CompletionStage;
+		if (completionStage) {
+			((CompletionStage<T>) futureResponse).whenComplete(wakeUp);
+		}
+
+		boolean interrupted = false;
+		try {
+			for (;;) {
+				LocalInvocation invocation;
+				while ((invocation = mailbox.poll()) != null) {
+					dJavaContext.invoke(invocation);
+				}
+				if (futureResponse.isDone()) {
+					break;
+				}
+
+				long waitNanos = Long.MAX_VALUE;
+				if (deadline != Deadline.NONE) {
+					long remainingMillis = deadline - System.currentTimeMillis();
+					if (remainingMillis <= 0) {
+						futureResponse.cancel(false);
+						throw new DeadlineExceededException();
+					}
+					waitNanos = TimeUnit.MILLISECONDS.toNanos(remainingMillis);
+				}
+
+				if (!completionStage) {
+					interrupted |= blockOnFuture(futureResponse, waitNanos);
+				}
+				else if (waitNanos == Long.MAX_VALUE) {
+					LockSupport.park(this);
+				}
+				else {
+					LockSupport.parkNanos(this, waitNanos);
+				}
+				interrupted |= Thread.interrupted();
+			}
+		}
+		finally {
+			if (interrupted) {
+				thread.interrupt();
+			}
+		}
+
+		try {
+			return futureResponse.get();
+		}
+		catch (InterruptedException ex) {
+			// can't happen, the response has arrived
+			throw new IllegalStateException(ex);
+		}
 	}
 
-	public synchronized void performInvocation(DJavaContext djJavaContext) {
-		if (pendingInvocation != null) {
-			djJavaContext.invoke(pendingInvocation);
-			pendingInvocation = null;
+	/** Blocks until a future that can't unpark the thread completes, the wait times out, or a callback arrives.
+	 * @return true if the thread was interrupted by something other than a callback
+	 */
+	private boolean blockOnFuture(Future<?> future, long waitNanos) {
+		synchronized (this) {
+			if (!mailbox.isEmpty()) {
+				return false;
+			}
+			blockedOnFuture = true;
+		}
+
+		boolean interrupted = false;
+		try {
+			if (waitNanos == Long.MAX_VALUE) {
+				future.get();
+			}
+			else {
+				future.get(waitNanos, TimeUnit.NANOSECONDS);
+			}
+		}
+		catch (InterruptedException ex) {
+			interrupted = true;
+		}
+		catch (TimeoutException ex) {
+			// check the deadline
+		}
+		catch (ExecutionException ex) {
+			// the response has arrived, and is reported by the caller
+		}
+		catch (CancellationException ex) {
+			// the response has arrived, and is reported by the caller
+		}
+
+		synchronized (this) {
+			blockedOnFuture = false;
+			if (interruptedForCallback) {
+				// the interrupt may arrive after the future completes, so it is cleared either way
+				interruptedForCallback = false;
+				Thread.interrupted();
+				interrupted = false;
+			}
 		}
+		return interrupted;
 	}
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava.postal;
+
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ryanberdeen.djava.Codec;
+import com.ryanberdeen.djava.InvocationListener;
+import com.ryanberdeen.djava.LocalInvocation;
+import com.ryanberdeen.postal.message.IncomingRequestMessage;
+
+/** Performs the invocations of a batch request in order, and sends their results in a single response.
+ * Each invocation is dispatched when the previous one has completed, so the invocations may run on different threads.
+ */
+class BatchResponse {
+	private IncomingRequestMessage request;
+	private PostalDJavaConnection dJavaConnection;
+	private Codec codec;
+	private Executor dispatchExecutor;
+	private boolean asynchronous;
+
+	private Entry[] entries;
+	private int nextEntry = 0;
+
+	/** The number of requests to dispatch the next entry. Only the thread that increments it from zero dispatches. */
+	private AtomicInteger pendingDispatches = new AtomicInteger();
+
+	public BatchResponse(IncomingRequestMessage request, PostalDJavaConnection dJavaConnection, Codec codec, Executor dispatchExecutor, boolean asynchronous, int size) {
+		this.request = request;
+		this.dJavaConnection = dJavaConnection;
+		this.codec = codec;
+		this.dispatchExecutor = dispatchExecutor;
+		this.asynchronous = asynchronous;
+		entries = new Entry[size];
+	}
+
+	public LocalInvocation setEntry(int index, Long callContextId, long targetId, String methodName, int methodIndex, Class<?>[] parameterTypes, Object[] arguments, InvocationListener<?> invocationListener) {
+		entries[index] = new Entry(callContextId, targetId, methodName, methodIndex, parameterTypes, arguments, invocationListener);
+		return entries[index];
+	}
+
+	public int size() {
+		return entries.length;
+	}
+
+	/** Starts performing the invocations. */
+	public void start() {
+		dispatchNext();
+	}
+
+	/** Dispatches the next entry, or sends the response if all entries have completed.
+	 * Entries that complete during dispatch don't dispatch recursively, but leave it to the dispatching thread.
+	 */
+	private void dispatchNext() {
+		if (pendingDispatches.getAndIncrement() > 0) {
+			return;
+		}
+
+		do {
+			if (nextEntry < entries.length) {
+				dJavaConnection.invokeLocally(entries[nextEntry++], dispatchExecutor);
+			}
+			else if (!asynchronous) {
+				sendResponse();
+			}
+		} while (pendingDispatches.decrementAndGet() > 0);
+	}
+
+	private void sendResponse() {
+		OutgoingSerializedObjectResponseMessage response = new OutgoingSerializedObjectResponseMessage(request);
+		MessageBuffer bytes = MessageBuffer.acquire();
+		try {
+			ObjectOutput out = codec.createOutput(bytes);
+			for (Entry entry : entries) {
+				out.writeBoolean(entry.throwable == null);
+				out.writeObject(entry.throwable == null ? entry.result : entry.throwable);
+			}
+			out.close();
+			response.setContent(bytes.toContent(), codec.getContentType());
+		}
+		catch (Exception ex) {
+			ex.printStackTrace();
+			try {
+				response.setStatus(500);
+				response.setContentObject(ex, codec);
+			}
+			catch (Exception ex2) {
+				ex2.printStackTrace();
+				return;
+			}
+		}
+		finally {
+			bytes.release();
+		}
+
+		dJavaConnection.sendResponse(response);
+	}
+
+	private class Entry extends LocalInvocation {
+		private Serializable result;
+		private Throwable throwable;
+
+		public Entry(Long callContextId, long targetId, String methodName, int methodIndex, Class<?>[] parameterTypes, Object[] arguments, InvocationListener<?> invocationListener) {
+			super(BatchResponse.this.dJavaConnection, callContextId, targetId, methodName, methodIndex, parameterTypes, arguments, invocationListener);
+		}
+
+		@Override
+		protected boolean isResponseRequired() {
+			return !asynchronous;
+		}
+
+		@Override
+		protected void handleResult(Serializable result) {
+			this.result = result;
+			dispatchNext();
+		}
+
+		@Override
+		protected void handleThrowable(Throwable t) {
+			throwable = t;
+			dispatchNext();
+		}
+
+		@Override
+		protected void handleInternalThrowable(Throwable t) {
+			t.printStackTrace();
+			throwable = t;
+			dispatchNext();
+		}
+	}
+}
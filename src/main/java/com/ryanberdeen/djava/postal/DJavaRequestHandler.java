@@ -21,10 +21,18 @@ package com.ryanberdeen.djava.postal;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.io.ObjectInput;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
+import com.ryanberdeen.djava.ClassResolver;
+import com.ryanberdeen.djava.Codec;
+import com.ryanberdeen.djava.Deadline;
+import com.ryanberdeen.djava.DeadlineExceededException;
 import com.ryanberdeen.djava.InvocationListener;
 import com.ryanberdeen.djava.LocalInvocation;
+import com.ryanberdeen.djava.ObjectDescriptor;
+import com.ryanberdeen.djava.SerializationCodec;
 import com.ryanberdeen.postal.handler.RequestHandler;
 import com.ryanberdeen.postal.message.IncomingRequestMessage;
 import com.ryanberdeen.postal.message.OutgoingResponseMessage;
@@ -35,21 +43,50 @@ import com.ryanberdeen.postal.message.OutgoingResponseMessage;
  */
 public class DJavaRequestHandler implements RequestHandler {
 	public static final String PARAMETER_TYPES_HEADER_SEPARATOR = ",";
+	public static final String ID_LIST_SEPARATOR = ",";
+	public static final String NAME_LIST_SEPARATOR = "\n";
 	public static final String METHOD_NAME_HEADER_NAME = "Method-Name";
+	public static final String METHOD_INDEX_HEADER_NAME = "Method-Index";
 	public static final String TARGET_PROXY_ID_HEADER_NAME = "Target-Proxy-Id";
+	public static final String TARGET_PROMISE_ID_HEADER_NAME = "Target-Promise-Id";
+	public static final String RESULT_PROMISE_ID_HEADER_NAME = "Result-Promise-Id";
 	public static final String TARGET_NAME_HEADER_NAME = "Target-Name";
+	public static final String METHOD_TABLE_FINGERPRINT_HEADER_NAME = "Method-Table-Fingerprint";
 	public static final String PARAMETER_TYPES_HEADER_NAME = "Parameter-Types";
-	public static final String CONTENT_TYPE = "application/x-java-serialized-object";
+	public static final String CONTENT_TYPE = SerializationCodec.CONTENT_TYPE;
 	public static final String ARGUMENT_COUNT_HEADER_NAME = "Argument-Count";
-	public static final String REQUESTING_THREAD_ID_HEADER_NAME = "Requesting-Thread-Id";
-	public static final String TARGET_THREAD_ID_HEADER_NAME = "Target-Thread-Id";
+	public static final String CALL_CONTEXT_ID_HEADER_NAME = "Call-Context-Id";
+	public static final String ASYNCHRONOUS_HEADER_NAME = "Asynchronous";
+	public static final String DEADLINE_HEADER_NAME = "Deadline";
+	public static final String INVOCATION_ID_HEADER_NAME = "Invocation-Id";
+	public static final String ACCEPT_HEADER_NAME = "Accept";
+
+	/** The status of the response to an invocation the server was too busy to accept. */
+	public static final int SERVER_BUSY_STATUS = 503;
+
+	/** The most parameter types headers that are cached. The headers come from the peer, so the cache is bounded. */
+	private static final int MAX_CACHED_PARAMETER_TYPES = 256;
 
 	private InvocationListener<?> invocationListener;
 
+	/** The executor invocations are performed with, unless the connection has its own. */
+	private volatile Executor dispatchExecutor;
+
+	/** Maps from parameter types header value to the parameter types. */
+	private ConcurrentHashMap<String, Class<?>[]> parameterTypesCache = new ConcurrentHashMap<String, Class<?>[]>();
+
 	public void setInvocationListener(InvocationListener<?> invocationListener) {
 		this.invocationListener = invocationListener;
 	}
 
+	/** Sets the executor invocations are performed with, so that slow invocations don't hold up the delivery of other
+	 * messages. By default, invocations are performed on the thread that delivered them, in the order they arrived.
+	 * @see com.ryanberdeen.djava.DispatchExecutors
+	 */
+	public void setDispatchExecutor(Executor dispatchExecutor) {
+		this.dispatchExecutor = dispatchExecutor;
+	}
+
 	// TODO ensure required headers are set
 	public OutgoingResponseMessage handleRequest(IncomingRequestMessage request) throws IOException {
 		String requestType = request.getRequestType();
@@ -62,6 +99,24 @@ public class DJavaRequestHandler implements RequestHandler {
 		else if (PostalDJavaConnection.REQUEST_LOOKUP.equals(requestType)) {
 			handleLookupRequest(request);
 		}
+		else if (PostalDJavaConnection.REQUEST_LOOKUP_ALL.equals(requestType)) {
+			handleLookupAllRequest(request);
+		}
+		else if (PostalDJavaConnection.REQUEST_BATCH.equals(requestType)) {
+			handleBatchRequest(request);
+		}
+		else if (PostalDJavaConnection.REQUEST_RENEW.equals(requestType)) {
+			handleRenewRequest(request);
+		}
+		else if (PostalDJavaConnection.REQUEST_RELEASE_PROMISES.equals(requestType)) {
+			getPostalDJavaConnection(request).releasePromises(getIntIds(request));
+		}
+		else if (PostalDJavaConnection.REQUEST_INVALIDATE.equals(requestType)) {
+			getPostalDJavaConnection(request).invalidateCachedResults(getIds(request));
+		}
+		else if (PostalDJavaConnection.REQUEST_CANCEL.equals(requestType)) {
+			handleCancelRequest(request);
+		}
 		else {
 			// TODO send error response
 		}
@@ -69,32 +124,140 @@ public class DJavaRequestHandler implements RequestHandler {
 	}
 
 	private void handleInvocationRequest(IncomingRequestMessage request) {
+		PostalDJavaConnection dJavaConnection;
+		PostalLocalInvocation localInvocation;
+		try {
+			dJavaConnection = getPostalDJavaConnection(request);
+			localInvocation = createInvocation(request, dJavaConnection);
+		}
+		catch (Exception ex) {
+			// TODO the request can't be answered without its headers
+			ex.printStackTrace();
+			return;
+		}
+
+		try {
+			if (Deadline.hasPassed(getDeadline(request))) {
+				// the requester has stopped waiting, so don't spend time decoding the arguments
+				String methodName = request.getHeader(METHOD_NAME_HEADER_NAME);
+				localInvocation.fail(new DeadlineExceededException(methodName != null ? methodName : "#" + request.getHeader(METHOD_INDEX_HEADER_NAME)));
+				return;
+			}
+			readArguments(request, dJavaConnection, localInvocation);
+		}
+		catch (Exception ex) {
+			// failed through the invocation, so that calls pipelined on its result fail too
+			localInvocation.fail(ex);
+			return;
+		}
+
+		dJavaConnection.invokeLocally(localInvocation, dispatchExecutor);
+	}
+
+	private void handleBatchRequest(IncomingRequestMessage request) {
 		try {
 			PostalDJavaConnection dJavaConnection = getPostalDJavaConnection(request);
-			LocalInvocation localInvocation = parseMessage(request, dJavaConnection);
+			Codec codec = dJavaConnection.getCodec(request.getContentType());
+			if (codec == null) {
+				throw new IllegalArgumentException("Unsupported content type " + request.getContentType());
+			}
+
+			Long callContextId = getCallContextId(request);
+
+			ObjectInput in = codec.createInput(new ByteArrayInputStream(request.getContent()));
+			BatchResponse batchResponse = new BatchResponse(request, dJavaConnection, codec, dispatchExecutor, isAsynchronous(request), in.readInt());
+			for (int i = 0; i < batchResponse.size(); i++) {
+				long targetId = in.readLong();
+				int methodIndex = in.readInt();
+				long deadline = in.readLong();
+				String methodName = null;
+				Class<?>[] parameterTypes = null;
+				if (methodIndex == -1) {
+					methodName = in.readUTF();
+					parameterTypes = getParameterTypes(in.readUTF());
+				}
 
-			dJavaConnection.invokeLocally(localInvocation);
+				Object[] args = new Object[in.readInt()];
+				for (int j = 0; j < args.length; j++) {
+					args[j] = in.readObject();
+				}
+
+				batchResponse.setEntry(i, callContextId, targetId, methodName, methodIndex, parameterTypes, args, invocationListener).setDeadline(deadline);
+			}
+			in.close();
+
+			batchResponse.start();
 		}
 		catch (Exception ex) {
-			// TODO
+			// TODO send error response
 			ex.printStackTrace();
+		}
+	}
 
+	/** Removes the objects with the ids in the request. */
+	public void handleFinalizeRequest(IncomingRequestMessage request) {
+		PostalDJavaConnection dJavaConnection = getPostalDJavaConnection(request);
+		for (long id : getIds(request)) {
+			dJavaConnection.removeLocalObject(id);
 		}
-		catch (Throwable t) {
-			throw (Error) t;
+	}
+
+	/** Cancels the invocations with the ids in the request. */
+	private void handleCancelRequest(IncomingRequestMessage request) {
+		PostalDJavaConnection dJavaConnection = getPostalDJavaConnection(request);
+		for (int invocationId : getIntIds(request)) {
+			dJavaConnection.cancelLocalInvocation(invocationId);
 		}
 	}
 
-	public void handleFinalizeRequest(IncomingRequestMessage request) {
+	/** Renews the leases of the objects with the ids in the request. */
+	private void handleRenewRequest(IncomingRequestMessage request) {
 		PostalDJavaConnection dJavaConnection = getPostalDJavaConnection(request);
-		dJavaConnection.removeLocalObject(Integer.parseInt(request.getContentAsString()));
+		dJavaConnection.renewLocalLeases(getIds(request));
+	}
+
+	/** Returns the object ids in the content of a request, which are separated by commas. */
+	private long[] getIds(IncomingRequestMessage request) {
+		String[] idStrings = request.getContentAsString().split(ID_LIST_SEPARATOR);
+		long[] ids = new long[idStrings.length];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = Long.parseLong(idStrings[i].trim());
+		}
+		return ids;
+	}
+
+	/** Returns the promise or invocation ids in the content of a request, which are separated by commas. */
+	private int[] getIntIds(IncomingRequestMessage request) {
+		String[] idStrings = request.getContentAsString().split(ID_LIST_SEPARATOR);
+		int[] ids = new int[idStrings.length];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = Integer.parseInt(idStrings[i].trim());
+		}
+		return ids;
 	}
 
 	private void handleLookupRequest(IncomingRequestMessage request) {
 		OutgoingSerializedObjectResponseMessage response = new OutgoingSerializedObjectResponseMessage(request);
 		PostalDJavaConnection dJavaConnection = getPostalDJavaConnection(request);
 		try {
-			response.setContentObject(dJavaConnection.getNamedObjectDescriptor(request.getContentAsString()));
+			response.setContentObject(dJavaConnection.getNamedObjectDescriptor(request.getContentAsString()), dJavaConnection.getCodec());
+			request.getConnection().sendResponse(response);
+		}
+		catch (Exception ex) {
+			// TODO send error response
+		}
+	}
+
+	private void handleLookupAllRequest(IncomingRequestMessage request) {
+		OutgoingSerializedObjectResponseMessage response = new OutgoingSerializedObjectResponseMessage(request);
+		PostalDJavaConnection dJavaConnection = getPostalDJavaConnection(request);
+		try {
+			String[] names = request.getContentAsString().split(NAME_LIST_SEPARATOR, -1);
+			ObjectDescriptor[] objectDescriptors = new ObjectDescriptor[names.length];
+			for (int i = 0; i < names.length; i++) {
+				objectDescriptors[i] = dJavaConnection.getNamedObjectDescriptor(names[i]);
+			}
+			response.setContentObject(objectDescriptors, dJavaConnection.getCodec());
 			request.getConnection().sendResponse(response);
 		}
 		catch (Exception ex) {
@@ -106,54 +269,121 @@ public class DJavaRequestHandler implements RequestHandler {
 		return PostalDJavaConnection.getPostalDJavaConnection(request.getConnection(), request.getUri(), true);
 	}
 
-	private LocalInvocation parseMessage(IncomingRequestMessage request, PostalDJavaConnection dJavaConnection) throws ClassNotFoundException, NoSuchMethodException {
-		String argumentCountHeader = request.getHeader(ARGUMENT_COUNT_HEADER_NAME);
-		int argumentCount = Integer.parseInt(argumentCountHeader);
+	/** Creates the invocation a request specifies, without its arguments, which are set by
+	 * {@link #readArguments(IncomingRequestMessage, PostalDJavaConnection, LocalInvocation)}.
+	 */
+	private PostalLocalInvocation createInvocation(IncomingRequestMessage request, PostalDJavaConnection dJavaConnection) {
+		String methodIndexHeader = request.getHeader(METHOD_INDEX_HEADER_NAME);
+		int methodIndex = methodIndexHeader != null ? Integer.parseInt(methodIndexHeader) : -1;
 
-		Object[] args;
-		Class<?>[] parameterTypes;
-		if (argumentCount > 0) {
-			args = new Object[argumentCount];
+		// respond using the codec the request was encoded with
+		Codec codec = getResponseCodec(request, dJavaConnection);
 
-			ByteArrayInputStream bytes = new ByteArrayInputStream(request.getContent());
-
-			try {
-				ObjectInputStream in = new ObjectInputStream(bytes);
-				for (int i = 0; i < args.length; i++) {
-					args[i] = in.readObject();
-				}
-				in.close();
-			}
-			catch (IOException ex) {
-				// an io exception should never happen while using a byte array stream
-				throw new Error(ex);
-			}
-			catch (ClassNotFoundException ex) {
-				// FIXME
-				throw new RuntimeException(ex);
+		long targetId = getLongHeader(request, TARGET_PROXY_ID_HEADER_NAME);
+		String targetName = request.getHeader(TARGET_NAME_HEADER_NAME);
+		ObjectDescriptor namedObjectDescriptor = null;
+		if (targetName != null) {
+			// an unknown name leaves the target as 0, which isn't found
+			namedObjectDescriptor = dJavaConnection.getNamedObjectDescriptor(targetName);
+			if (namedObjectDescriptor != null) {
+				targetId = namedObjectDescriptor.getId();
 			}
+		}
+		Long callContextId = getCallContextId(request);
+		String methodName = request.getHeader(METHOD_NAME_HEADER_NAME);
 
-			String[] parameterTypeNames = request.getHeader(PARAMETER_TYPES_HEADER_NAME).split(PARAMETER_TYPES_HEADER_SEPARATOR);
-			parameterTypes = new Class[parameterTypeNames.length];
+		PostalLocalInvocation localInvocation = new PostalLocalInvocation(request, dJavaConnection, codec, isAsynchronous(request), callContextId, targetId, methodName, methodIndex, new Class[0], new Object[0], invocationListener);
+		localInvocation.setPromiseIds(getIntHeader(request, TARGET_PROMISE_ID_HEADER_NAME), getIntHeader(request, RESULT_PROMISE_ID_HEADER_NAME));
+		localInvocation.setNamedTarget(namedObjectDescriptor);
+		localInvocation.setDeadline(getDeadline(request));
+		localInvocation.setInvocationId(getIntHeader(request, INVOCATION_ID_HEADER_NAME));
+		return localInvocation;
+	}
 
-			for (int i = 0; i < parameterTypes.length; i++) {
-				parameterTypes[i] = Class.forName(parameterTypeNames[i]);
+	/** Decodes the arguments of an invocation request, and sets them on the invocation. */
+	private void readArguments(IncomingRequestMessage request, PostalDJavaConnection dJavaConnection, LocalInvocation localInvocation) throws ClassNotFoundException {
+		int argumentCount = Integer.parseInt(request.getHeader(ARGUMENT_COUNT_HEADER_NAME));
+		if (argumentCount == 0) {
+			return;
+		}
+
+		Codec codec = dJavaConnection.getCodec(request.getContentType());
+		if (codec == null) {
+			throw new IllegalArgumentException("Unsupported content type " + request.getContentType());
+		}
+
+		Object[] args = new Object[argumentCount];
+		ByteArrayInputStream bytes = new ByteArrayInputStream(request.getContent());
+		try {
+			ObjectInput in = codec.createInput(bytes);
+			for (int i = 0; i < args.length; i++) {
+				args[i] = in.readObject();
 			}
+			in.close();
 		}
-		else {
-			args = new Object[0];
-			parameterTypes = new Class[0];
+		catch (IOException ex) {
+			// an io exception should never happen while using a byte array stream
+			throw new Error(ex);
 		}
 
-		Integer targetId = new Integer(request.getHeader(TARGET_PROXY_ID_HEADER_NAME));
-		Long remoteThreadId = new Long(request.getHeader(REQUESTING_THREAD_ID_HEADER_NAME));
-		Long targetThreadId = null;
-		String targetThreadIdString = request.getHeader(TARGET_THREAD_ID_HEADER_NAME);
-		if (targetThreadIdString != null) {
-			targetThreadId = new Long(targetThreadIdString);
+		Class<?>[] parameterTypes = null;
+		if (request.getHeader(METHOD_INDEX_HEADER_NAME) == null) {
+			parameterTypes = getParameterTypes(request.getHeader(PARAMETER_TYPES_HEADER_NAME));
 		}
-		String methodName = request.getHeader(METHOD_NAME_HEADER_NAME);
+		localInvocation.setArguments(parameterTypes, args);
+	}
+
+	/** Returns the codec to respond to a request with: the one its content was encoded with, or, if it has no
+	 * content, the one it accepts. The connection's codec is used if the requester's isn't registered.
+	 */
+	private Codec getResponseCodec(IncomingRequestMessage request, PostalDJavaConnection dJavaConnection) {
+		String contentType = request.getContentType() != null ? request.getContentType() : request.getHeader(ACCEPT_HEADER_NAME);
+		Codec codec = dJavaConnection.getCodec(contentType);
+		return codec != null ? codec : dJavaConnection.getCodec();
+	}
+
+	/** Returns the value of an integer header, or 0 if it isn't set. */
+	private int getIntHeader(IncomingRequestMessage request, String headerName) {
+		String value = request.getHeader(headerName);
+		return value != null ? Integer.parseInt(value) : 0;
+	}
 
-		return new PostalLocalInvocation(request, dJavaConnection, remoteThreadId, targetThreadId, targetId, methodName, parameterTypes, args, invocationListener);
+	/** Returns the value of a long header, or 0 if it isn't set. */
+	private long getLongHeader(IncomingRequestMessage request, String headerName) {
+		String value = request.getHeader(headerName);
+		return value != null ? Long.parseLong(value) : 0;
+	}
+
+	/** Returns the time by which the requester needs the result, or {@link Deadline#NONE} if it has no deadline. */
+	private long getDeadline(IncomingRequestMessage request) {
+		String value = request.getHeader(DEADLINE_HEADER_NAME);
+		return value != null ? Long.parseLong(value) : Deadline.NONE;
+	}
+
+	/** Returns true if the requester does not need a response. */
+	private boolean isAsynchronous(IncomingRequestMessage request) {
+		return "true".equals(request.getHeader(ASYNCHRONOUS_HEADER_NAME));
+	}
+
+	/** Returns the id of the call chain the request is part of, or null if it isn't part of one. */
+	private Long getCallContextId(IncomingRequestMessage request) {
+		String callContextIdString = request.getHeader(CALL_CONTEXT_ID_HEADER_NAME);
+		return callContextIdString != null ? new Long(callContextIdString) : null;
+	}
+
+	private Class<?>[] getParameterTypes(String parameterTypesHeader) throws ClassNotFoundException {
+		Class<?>[] parameterTypes = parameterTypesCache.get(parameterTypesHeader);
+		if (parameterTypes == null) {
+			String[] parameterTypeNames = parameterTypesHeader.length() > 0 ? parameterTypesHeader.split(PARAMETER_TYPES_HEADER_SEPARATOR) : new String[0];
+			parameterTypes = new Class[parameterTypeNames.length];
+
+			for (int i = 0; i < parameterTypes.length; i++) {
+				parameterTypes[i] = ClassResolver.forName(parameterTypeNames[i]);
+			}
+			if (parameterTypesCache.size() < MAX_CACHED_PARAMETER_TYPES) {
+				parameterTypesCache.put(parameterTypesHeader, parameterTypes);
+			}
+		}
+		return parameterTypes;
 	}
 }
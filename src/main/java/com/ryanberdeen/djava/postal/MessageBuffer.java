@@ -0,0 +1,91 @@
+/*
+ * Copyright 2008 Ryan Berdeen.
+ *
+ * This file is part of dJava.
+ *
+ * dJava is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dJava is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with dJava.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ryanberdeen.djava.postal;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A reusable buffer for encoding message content.
+ * Buffers are taken from a pool with {@link #acquire()} and must be returned with {@link #release()}. New buffers are
+ * sized from the average size of recent messages, so they rarely need to grow.
+ */
+class MessageBuffer extends ByteArrayOutputStream {
+	private static final int MIN_CAPACITY = 256;
+
+	/** Buffers that have grown larger than this are not returned to the pool. */
+	private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+
+	private static final int MAX_POOLED_BUFFERS = 64;
+
+	private static ConcurrentLinkedQueue<MessageBuffer> pool = new ConcurrentLinkedQueue<MessageBuffer>();
+	private static AtomicInteger pooledBufferCount = new AtomicInteger();
+
+	/** Exponential moving average of message sizes. Updated without synchronization, as it is only an estimate. */
+	private static volatile int averageSize = MIN_CAPACITY;
+
+	private MessageBuffer(int capacity) {
+		super(capacity);
+	}
+
+	public static MessageBuffer acquire() {
+		MessageBuffer buffer = pool.poll();
+		if (buffer != null) {
+			pooledBufferCount.decrementAndGet();
+			return buffer;
+		}
+		else {
+			return new MessageBuffer(Math.min(Math.max(averageSize * 2, MIN_CAPACITY), MAX_POOLED_CAPACITY));
+		}
+	}
+
+	/** Returns the content of the buffer as an array the caller owns.
+	 * The buffer's own array is handed over when it is exactly full, which avoids the copy.
+	 */
+	public synchronized byte[] toContent() {
+		averageSize += (count - averageSize) >> 3;
+
+		if (count == buf.length) {
+			byte[] result = buf;
+			buf = new byte[0];
+			count = 0;
+			return result;
+		}
+		else {
+			return toByteArray();
+		}
+	}
+
+	/** Returns the buffer to the pool. The buffer must not be used afterwards.
+	 */
+	public void release() {
+		if (buf.length < MIN_CAPACITY || buf.length > MAX_POOLED_CAPACITY) {
+			return;
+		}
+
+		if (pooledBufferCount.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+			reset();
+			pool.offer(this);
+		}
+		else {
+			pooledBufferCount.decrementAndGet();
+		}
+	}
+}
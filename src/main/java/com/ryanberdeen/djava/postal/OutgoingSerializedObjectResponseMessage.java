@@ -19,13 +19,14 @@
 
 package com.ryanberdeen.djava.postal;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InvalidClassException;
 import java.io.NotSerializableException;
-import java.io.ObjectOutputStream;
+import java.io.ObjectOutput;
 import java.io.Serializable;
 
+import com.ryanberdeen.djava.Codec;
+import com.ryanberdeen.djava.SerializationCodec;
 import com.ryanberdeen.postal.message.OutgoingResponseMessage;
 import com.ryanberdeen.postal.message.RequestMessage;
 
@@ -34,14 +35,22 @@ public class OutgoingSerializedObjectResponseMessage extends OutgoingResponseMes
 		super(inResponseToMessage);
 	}
 
+	private static final Codec DEFAULT_CODEC = new SerializationCodec();
+
 	public void setContentObject(Serializable content) throws InvalidClassException, NotSerializableException {
-		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		setContentObject(content, DEFAULT_CODEC);
+	}
+
+	/** Sets the content of the message to the object encoded using the specified codec.
+	 */
+	public void setContentObject(Serializable content, Codec codec) throws InvalidClassException, NotSerializableException {
+		MessageBuffer bytes = MessageBuffer.acquire();
 		try {
-			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			ObjectOutput out = codec.createOutput(bytes);
 			out.writeObject(content);
 			out.close();
 
-			setContent(bytes.toByteArray(), DJavaRequestHandler.CONTENT_TYPE);
+			setContent(bytes.toContent(), codec.getContentType());
 		}
 		catch (InvalidClassException ex) {
 			throw ex;
@@ -52,5 +61,8 @@ public class OutgoingSerializedObjectResponseMessage extends OutgoingResponseMes
 		catch (IOException ex) {
 			throw new Error(ex);
 		}
+		finally {
+			bytes.release();
+		}
 	}
 }
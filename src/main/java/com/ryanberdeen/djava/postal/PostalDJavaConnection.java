@@ -20,19 +20,28 @@
 package com.ryanberdeen.djava.postal;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.rmi.RemoteException;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
+import com.ryanberdeen.djava.Batch;
+import com.ryanberdeen.djava.CallContext;
+import com.ryanberdeen.djava.Codec;
 import com.ryanberdeen.djava.DJavaConnection;
 import com.ryanberdeen.djava.DJavaContext;
+import com.ryanberdeen.djava.Deadline;
+import com.ryanberdeen.djava.DeadlineExceededException;
+import com.ryanberdeen.djava.FutureCompletions;
 import com.ryanberdeen.djava.ObjectDescriptor;
 import com.ryanberdeen.djava.RemoteInvocation;
-import com.ryanberdeen.djava.RemoteObjectReference;
+import com.ryanberdeen.djava.ServerBusyException;
 import com.ryanberdeen.postal.Connection;
 import com.ryanberdeen.postal.message.IncomingResponseMessage;
 import com.ryanberdeen.postal.message.OutgoingRequestMessage;
@@ -42,106 +51,321 @@ public class PostalDJavaConnection extends DJavaConnection {
 	public static final String REQUEST_INVOKE = "invoke";
 	public static final String REQUEST_FINALIZE = "finalize";
 	public static final String REQUEST_LOOKUP = "lookup";
+	public static final String REQUEST_LOOKUP_ALL = "lookup-all";
+	public static final String REQUEST_BATCH = "batch";
+	public static final String REQUEST_RENEW = "renew";
+	public static final String REQUEST_RELEASE_PROMISES = "release-promises";
+	public static final String REQUEST_INVALIDATE = "invalidate";
+	public static final String REQUEST_CANCEL = "cancel";
 
 	private static final String CONNECTION_ATTRIBUTE_PREFIX = DJavaContext.class.getName() + "dJavaContext.";
 
 	private Connection connection;
 	private String uri;
 
+	/** Ids for invocations the peer can be told to cancel. */
+	private AtomicInteger nextInvocationId = new AtomicInteger(1);
+
 	public PostalDJavaConnection(Connection connection, String uri, boolean bidirectional) {
 		super(bidirectional);
 		this.connection = connection;
 		this.uri = uri;
 	}
 
-	public Object invokeRemotely(RemoteInvocation invocation) throws Throwable {
+	public Object invokeRemotely(final RemoteInvocation invocation) throws Throwable {
+		// TODO check allowed exceptions
+		if (invocation.isAsynchronous()) {
+			OutgoingRequestMessage request = createInvokeRequest(invocation, 0);
+			request.setHeader(DJavaRequestHandler.ASYNCHRONOUS_HEADER_NAME, "true");
+			connection.sendRequestAndIgnoreResponse(request);
+			return null;
+		}
+		else {
+			final int invocationId = nextInvocationId.getAndIncrement();
+			ResponseMessage response;
+			try {
+				response = dJavaContext.awaitResponse(new Callable<Future<IncomingResponseMessage>>() {
+					public Future<IncomingResponseMessage> call() throws Exception {
+						return connection.sendRequest(createInvokeRequest(invocation, invocationId));
+					}
+				}, invocation.getDeadline());
+			}
+			catch (DeadlineExceededException ex) {
+				cancelRemotely(invocationId);
+				throw new DeadlineExceededException(invocation.getMethodName());
+			}
+
+			// TODO check for null response (connection closed)
+
+			if (invocation.getTargetName() != null) {
+				// the peer reports the object the name resolved to
+				String targetIdHeader = response.getHeader(DJavaRequestHandler.TARGET_PROXY_ID_HEADER_NAME);
+				String fingerprintHeader = response.getHeader(DJavaRequestHandler.METHOD_TABLE_FINGERPRINT_HEADER_NAME);
+				if (targetIdHeader != null && fingerprintHeader != null) {
+					invocation.setResolvedTarget(Long.parseLong(targetIdHeader), Long.parseLong(fingerprintHeader));
+				}
+			}
+
+			return getResult(response);
+		}
+	}
+
+	@Override
+	protected CompletableFuture<Object> invokeRemotelyWithFuture(RemoteInvocation invocation) {
+		final CompletableFuture<Object> result = new CompletableFuture<Object>();
+		final int invocationId = nextInvocationId.getAndIncrement();
+		OutgoingRequestMessage request;
+		try {
+			request = createInvokeRequest(invocation, invocationId);
+		}
+		catch (Exception ex) {
+			result.completeExceptionally(ex);
+			return result;
+		}
+
+		final CompletableFuture<IncomingResponseMessage> futureResponse = FutureCompletions.toCompletableFuture(connection.sendRequest(request));
+		// decoded, and the caller's dependent stages run, on the completion executor rather than the thread that
+		// delivered the response
+		futureResponse.whenCompleteAsync(new BiConsumer<IncomingResponseMessage, Throwable>() {
+			public void accept(IncomingResponseMessage response, Throwable throwable) {
+				if (throwable != null) {
+					result.completeExceptionally(throwable);
+					return;
+				}
+
+				try {
+					result.complete(getResult(response));
+				}
+				catch (Throwable t) {
+					result.completeExceptionally(t);
+				}
+			}
+		}, getCompletionExecutor());
+
+		// if the caller gives up before the response arrives, the peer can stop working on it
+		result.whenComplete(new BiConsumer<Object, Throwable>() {
+			public void accept(Object value, Throwable throwable) {
+				if (!futureResponse.isDone() && (throwable instanceof CancellationException || throwable instanceof DeadlineExceededException)) {
+					cancelRemotely(invocationId);
+				}
+			}
+		});
+
+		return result;
+	}
+
+	/** Creates the request for an invocation.
+	 * @param invocationId the id to cancel the invocation with, or 0 if it won't be cancelled
+	 */
+	private OutgoingRequestMessage createInvokeRequest(RemoteInvocation invocation, int invocationId) throws Exception {
 		OutgoingRequestMessage request = new OutgoingRequestMessage(connection, REQUEST_INVOKE, uri);
-		request.setHeader(DJavaRequestHandler.REQUESTING_THREAD_ID_HEADER_NAME, String.valueOf(Thread.currentThread().getId()));
-		request.setHeader(DJavaRequestHandler.TARGET_PROXY_ID_HEADER_NAME, String.valueOf(invocation.getTargetId()));
-		Long targetThreadId = getRequestingThreadId();
-		if (targetThreadId != null) {
-			request.setHeader(DJavaRequestHandler.TARGET_THREAD_ID_HEADER_NAME, String.valueOf(targetThreadId));
+		setCallContextHeader(request);
+		if (invocationId != 0) {
+			request.setHeader(DJavaRequestHandler.INVOCATION_ID_HEADER_NAME, String.valueOf(invocationId));
+		}
+		if (invocation.getDeadline() != Deadline.NONE) {
+			request.setHeader(DJavaRequestHandler.DEADLINE_HEADER_NAME, String.valueOf(invocation.getDeadline()));
+		}
+		if (invocation.getTargetPromiseId() != 0) {
+			request.setHeader(DJavaRequestHandler.TARGET_PROMISE_ID_HEADER_NAME, String.valueOf(invocation.getTargetPromiseId()));
+		}
+		else if (invocation.getTargetName() != null) {
+			request.setHeader(DJavaRequestHandler.TARGET_NAME_HEADER_NAME, invocation.getTargetName());
+		}
+		else {
+			request.setHeader(DJavaRequestHandler.TARGET_PROXY_ID_HEADER_NAME, String.valueOf(invocation.getTargetId()));
+		}
+		if (invocation.getResultPromiseId() != 0) {
+			request.setHeader(DJavaRequestHandler.RESULT_PROMISE_ID_HEADER_NAME, String.valueOf(invocation.getResultPromiseId()));
 		}
 
-		request.setHeader(DJavaRequestHandler.METHOD_NAME_HEADER_NAME, invocation.getMethodName());
 		Class<?>[] parameterTypes = invocation.getParameterTypes();
-		StringBuilder parameterTypesStringBuidler = new StringBuilder();
-		if (parameterTypes.length > 0) {
-			parameterTypesStringBuidler.append(parameterTypes[0].getName());
-			for (int i = 1; i < parameterTypes.length; i++) {
-				parameterTypesStringBuidler.append(',');
-				parameterTypesStringBuidler.append(parameterTypes[i].getName());
-			}
+		if (invocation.getMethodIndex() != -1) {
+			request.setHeader(DJavaRequestHandler.METHOD_INDEX_HEADER_NAME, String.valueOf(invocation.getMethodIndex()));
+		}
+		else {
+			// the peer doesn't support method indexes
+			request.setHeader(DJavaRequestHandler.METHOD_NAME_HEADER_NAME, invocation.getMethodName());
+			request.setHeader(DJavaRequestHandler.PARAMETER_TYPES_HEADER_NAME, getParameterTypesHeader(parameterTypes));
 		}
-		request.setHeader(DJavaRequestHandler.PARAMETER_TYPES_HEADER_NAME, parameterTypesStringBuidler.toString());
 
 		Object[] args = invocation.getArguments();
 		if (args != null) {
 			request.setHeader(DJavaRequestHandler.ARGUMENT_COUNT_HEADER_NAME, String.valueOf(args.length));
-			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			Codec codec = getCodec();
+			MessageBuffer bytes = MessageBuffer.acquire();
 			try {
-				ObjectOutputStream out = new ObjectOutputStream(bytes);
-
-				for (int i = 0; i < args.length; i++) {
-					Object argument = args[i];
-					argument = dJavaContext.toOutgoing(argument, parameterTypes[i]);
-					out.writeObject(argument);
-				}
-
+				ObjectOutput out = codec.createOutput(bytes);
+				writeArguments(out, invocation);
 				out.close();
+				request.setContent(bytes.toContent(), codec.getContentType());
 			}
 			catch (IOException ex) {
 				// shouldn't happen
 				throw new Error(ex);
 			}
-
-			request.setContent(bytes.toByteArray(), DJavaRequestHandler.CONTENT_TYPE);
+			finally {
+				bytes.release();
+			}
 		}
 		else {
 			request.setHeader(DJavaRequestHandler.ARGUMENT_COUNT_HEADER_NAME, "0");
+			// there is no content to tell the peer which codec to respond with
+			request.setHeader(DJavaRequestHandler.ACCEPT_HEADER_NAME, getCodec().getContentType());
 		}
 
-		ResponseMessage response;
+		return request;
+	}
 
-		// TODO check allowed exceptions
-		Future<IncomingResponseMessage> futureResponse = connection.sendRequest(request);
-		if (invocation.isAsynchronous()) {
-			return null;
+	/** Returns the result of an invocation from its response, or throws the exception the invocation threw.
+	 */
+	private Object getResult(ResponseMessage response) throws Throwable {
+		if (response.getStatus() == 200) {
+			return getObjectContent(response);
 		}
 		else {
-			response = dJavaContext.awaitResponse(futureResponse);
+			Throwable throwable = (Throwable) getObjectContent(response);
+			if (throwable != null) {
+				throw throwable;
+			}
+			else if (response.getStatus() == DJavaRequestHandler.SERVER_BUSY_STATUS) {
+				throw new ServerBusyException();
+			}
+			else {
+				// TODO throw unchecked exception
+				throw new RemoteException("Remote error " + response.getStatus() + ": " + response.getContentAsString());
+			}
+		}
+	}
 
-			// TODO check for null response (connection closed)
+	@Override
+	protected void invokeRemotely(Batch batch) throws Exception {
+		final OutgoingRequestMessage request = new OutgoingRequestMessage(connection, REQUEST_BATCH, uri);
+
+		Codec codec = getCodec();
+		MessageBuffer bytes = MessageBuffer.acquire();
+		try {
+			ObjectOutput out = codec.createOutput(bytes);
+			out.writeInt(batch.size());
+			for (RemoteInvocation invocation : batch.getInvocations()) {
+				Class<?>[] parameterTypes = invocation.getParameterTypes();
+				out.writeLong(invocation.getTargetId());
+				out.writeInt(invocation.getMethodIndex());
+				out.writeLong(invocation.getDeadline());
+				if (invocation.getMethodIndex() == -1) {
+					out.writeUTF(invocation.getMethodName());
+					out.writeUTF(getParameterTypesHeader(parameterTypes));
+				}
 
-			if (response.getStatus() == 200) {
-				return getObjectContent(response);
+				Object[] args = invocation.getArguments();
+				if (args != null) {
+					out.writeInt(args.length);
+					writeArguments(out, invocation);
+				}
+				else {
+					out.writeInt(0);
+				}
 			}
-			else {
-				Throwable throwable = (Throwable) getObjectContent(response);
-				if (throwable != null) {
-					throw throwable;
+			out.close();
+			request.setContent(bytes.toContent(), codec.getContentType());
+		}
+		finally {
+			bytes.release();
+		}
+
+		if (batch.isAsynchronous()) {
+			// possibly sent by another thread, so the batch carries the chain the invocations were made in
+			setCallContextHeader(request, batch.getCallContext());
+			request.setHeader(DJavaRequestHandler.ASYNCHRONOUS_HEADER_NAME, "true");
+			connection.sendRequestAndIgnoreResponse(request);
+			return;
+		}
+
+		IncomingResponseMessage response = dJavaContext.awaitResponse(new Callable<Future<IncomingResponseMessage>>() {
+			public Future<IncomingResponseMessage> call() {
+				setCallContextHeader(request);
+				return connection.sendRequest(request);
+			}
+		}, batch.getDeadline());
+
+		if (response.getStatus() == 200) {
+			ObjectInput in = getCodec(response.getContentType()).createInput(new ByteArrayInputStream(response.getContent()));
+			for (int i = 0; i < batch.size(); i++) {
+				boolean succeeded = in.readBoolean();
+				Object result = in.readObject();
+				if (succeeded) {
+					batch.setResult(i, dJavaContext.fromResponse(this, result));
 				}
 				else {
-					// TODO throw unchecked exception
-					throw new RemoteException("Remote error " + response.getStatus() + ": " + response.getContentAsString());
+					batch.setThrowable(i, (Throwable) result);
 				}
 			}
 		}
+		else {
+			Throwable throwable = (Throwable) getObjectContent(response);
+			if (throwable == null && response.getStatus() == DJavaRequestHandler.SERVER_BUSY_STATUS) {
+				throwable = new ServerBusyException();
+			}
+			else if (throwable == null) {
+				throwable = new RemoteException("Remote error " + response.getStatus() + ": " + response.getContentAsString());
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				batch.setThrowable(i, throwable);
+			}
+		}
+	}
+
+	/** Sets the id of the call chain the current thread is in, so that the peer performs the request in it. */
+	private void setCallContextHeader(OutgoingRequestMessage request) {
+		setCallContextHeader(request, CallContext.current());
+	}
+
+	private void setCallContextHeader(OutgoingRequestMessage request, CallContext callContext) {
+		if (callContext != null) {
+			request.setHeader(DJavaRequestHandler.CALL_CONTEXT_ID_HEADER_NAME, String.valueOf(callContext.getId()));
+		}
+	}
+
+	private void writeArguments(ObjectOutput out, RemoteInvocation invocation) throws Exception {
+		Object[] args = invocation.getArguments();
+		Class<?>[] parameterTypes = invocation.getParameterTypes();
+		for (int i = 0; i < args.length; i++) {
+			Object argument = args[i];
+			argument = dJavaContext.toOutgoing(argument, parameterTypes[i], invocation.isArgumentByValue(i));
+			out.writeObject(argument);
+		}
+	}
+
+	private static String getParameterTypesHeader(Class<?>[] parameterTypes) {
+		StringBuilder parameterTypesStringBuidler = new StringBuilder();
+		if (parameterTypes.length > 0) {
+			parameterTypesStringBuidler.append(parameterTypes[0].getName());
+			for (int i = 1; i < parameterTypes.length; i++) {
+				parameterTypesStringBuidler.append(DJavaRequestHandler.PARAMETER_TYPES_HEADER_SEPARATOR);
+				parameterTypesStringBuidler.append(parameterTypes[i].getName());
+			}
+		}
+		return parameterTypesStringBuidler.toString();
 	}
 
 	public void sendResponse(OutgoingSerializedObjectResponseMessage response) {
 		connection.sendResponse(response);
 	}
 
+	/** Returns the object in a response, or null if it has no content.
+	 * @throws IOException if the response was encoded with a codec that isn't registered
+	 */
 	private Object getObjectContent(ResponseMessage response) throws Exception {
-		if (DJavaRequestHandler.CONTENT_TYPE.equals(response.getContentType())) {
-			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(response.getContent()));
-
-			return dJavaContext.fromResponse(this, in.readObject());
-		}
-		else {
+		if (response.getContentType() == null) {
 			return null;
 		}
+		Codec codec = getCodec(response.getContentType());
+		if (codec == null) {
+			throw new IOException("Unsupported content type " + response.getContentType());
+		}
+		ObjectInput in = codec.createInput(new ByteArrayInputStream(response.getContent()));
+
+		return dJavaContext.fromResponse(this, in.readObject());
 	}
 
 	@Override
@@ -150,7 +374,7 @@ public class PostalDJavaConnection extends DJavaConnection {
 		request.setContent(name);
 		IncomingResponseMessage response = connection.sendRequestAndAwaitResponseUninterruptibly(request);
 		try {
-			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(response.getContent()));
+			ObjectInput in = getCodec(response.getContentType()).createInput(new ByteArrayInputStream(response.getContent()));
 			return (ObjectDescriptor) in.readObject();
 		}
 		catch (Exception ex) {
@@ -158,9 +382,72 @@ public class PostalDJavaConnection extends DJavaConnection {
 		}
 	}
 
-	public void finalizeRemotely(RemoteObjectReference remoteObjectReference) {
-		OutgoingRequestMessage request = new OutgoingRequestMessage(connection, REQUEST_FINALIZE, uri);
-		request.setContent(String.valueOf(remoteObjectReference.getId()));
+	@Override
+	public ObjectDescriptor[] lookUpRemoteObjects(String[] names) {
+		OutgoingRequestMessage request = new OutgoingRequestMessage(connection, REQUEST_LOOKUP_ALL, uri);
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0) {
+				content.append(DJavaRequestHandler.NAME_LIST_SEPARATOR);
+			}
+			content.append(names[i]);
+		}
+		request.setContent(content.toString());
+		IncomingResponseMessage response = connection.sendRequestAndAwaitResponseUninterruptibly(request);
+		try {
+			ObjectInput in = getCodec(response.getContentType()).createInput(new ByteArrayInputStream(response.getContent()));
+			return (ObjectDescriptor[]) in.readObject();
+		}
+		catch (Exception ex) {
+			return new ObjectDescriptor[names.length];
+		}
+	}
+
+	@Override
+	protected void finalizeRemotely(long[] ids) {
+		sendIds(REQUEST_FINALIZE, ids);
+	}
+
+	@Override
+	protected void renewRemotely(long[] ids) {
+		sendIds(REQUEST_RENEW, ids);
+	}
+
+	@Override
+	protected void releasePromisesRemotely(int[] promiseIds) {
+		sendIds(REQUEST_RELEASE_PROMISES, promiseIds);
+	}
+
+	@Override
+	protected void invalidateCachedResultsRemotely(long[] ids) {
+		sendIds(REQUEST_INVALIDATE, ids);
+	}
+
+	/** Tells the peer to stop working on an invocation the caller has given up on. */
+	private void cancelRemotely(int invocationId) {
+		sendIds(REQUEST_CANCEL, new int[] {invocationId});
+	}
+
+	/** Sends a request with a list of promise or invocation ids as its content, ignoring the response. */
+	private void sendIds(String requestType, int[] ids) {
+		long[] longIds = new long[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			longIds[i] = ids[i];
+		}
+		sendIds(requestType, longIds);
+	}
+
+	/** Sends a request with a list of object ids as its content, ignoring the response. */
+	private void sendIds(String requestType, long[] ids) {
+		StringBuilder content = new StringBuilder();
+		content.append(ids[0]);
+		for (int i = 1; i < ids.length; i++) {
+			content.append(DJavaRequestHandler.ID_LIST_SEPARATOR);
+			content.append(ids[i]);
+		}
+
+		OutgoingRequestMessage request = new OutgoingRequestMessage(connection, requestType, uri);
+		request.setContent(content.toString());
 		connection.sendRequestAndIgnoreResponse(request);
 	}
 
@@ -23,42 +23,74 @@ import java.io.InvalidClassException;
 import java.io.NotSerializableException;
 import java.io.Serializable;
 
+import com.ryanberdeen.djava.Codec;
 import com.ryanberdeen.djava.DJavaConnection;
+import com.ryanberdeen.djava.DeadlineExceededException;
 import com.ryanberdeen.djava.InvocationListener;
 import com.ryanberdeen.djava.LocalInvocation;
+import com.ryanberdeen.djava.ObjectDescriptor;
 import com.ryanberdeen.postal.message.IncomingRequestMessage;
 
 public class PostalLocalInvocation extends LocalInvocation {
 	private IncomingRequestMessage request;
+	private Codec codec;
+	private boolean asynchronous;
 
-	public PostalLocalInvocation(IncomingRequestMessage request, DJavaConnection connection, long requestingThreadId, Long targetThreadId, Integer targetId, String methodName, Class<?>[] parameterTypes, Object[] arguments, InvocationListener<?> invocationListener) {
-		super(connection, requestingThreadId, targetThreadId, targetId, methodName, parameterTypes, arguments, invocationListener);
+	/** The object the request named as its target, reported in the response so the requester can refer to it by id. */
+	private ObjectDescriptor namedTarget;
+
+	public PostalLocalInvocation(IncomingRequestMessage request, DJavaConnection connection, Codec codec, boolean asynchronous, Long callContextId, long targetId, String methodName, int methodIndex, Class<?>[] parameterTypes, Object[] arguments, InvocationListener<?> invocationListener) {
+		super(connection, callContextId, targetId, methodName, methodIndex, parameterTypes, arguments, invocationListener);
 		this.request = request;
+		this.codec = codec;
+		this.asynchronous = asynchronous;
+	}
+
+	public void setNamedTarget(ObjectDescriptor namedTarget) {
+		this.namedTarget = namedTarget;
+	}
+
+	@Override
+	protected boolean isResponseRequired() {
+		return !asynchronous;
 	}
 
 	@Override
 	protected void handleResult(Serializable result) throws InvalidClassException, NotSerializableException {
+		if (asynchronous) {
+			return;
+		}
 		OutgoingSerializedObjectResponseMessage response = new OutgoingSerializedObjectResponseMessage(request);
-		response.setContentObject(result);
+		response.setContentObject(result, codec);
 		sendResponse(response);
 	}
 
 	@Override
 	protected void handleThrowable(Throwable t) throws Exception {
-		t.printStackTrace();
+		boolean rejected = isRejected();
+		// rejections and expired requests are expected under load, so they aren't logged
+		if (!rejected && !(t instanceof DeadlineExceededException)) {
+			t.printStackTrace();
+		}
+		if (asynchronous) {
+			return;
+		}
 		OutgoingSerializedObjectResponseMessage response = new OutgoingSerializedObjectResponseMessage(request);
-		response.setStatus(500);
-		response.setContentObject(t);
+		response.setStatus(rejected ? DJavaRequestHandler.SERVER_BUSY_STATUS : 500);
+		response.setContentObject(t, codec);
 		sendResponse(response);
 	}
 
 	@Override
 	protected void handleInternalThrowable(Throwable t) {
 		t.printStackTrace();
+		if (asynchronous) {
+			return;
+		}
 		try {
 			OutgoingSerializedObjectResponseMessage response = new OutgoingSerializedObjectResponseMessage(request);
 			response.setStatus(500);
-			response.setContentObject(t);
+			response.setContentObject(t, codec);
 			sendResponse(response);
 		}
 		catch (Exception ex) {
@@ -67,6 +99,10 @@ public class PostalLocalInvocation extends LocalInvocation {
 	}
 
 	private void sendResponse(OutgoingSerializedObjectResponseMessage response) {
+		if (namedTarget != null) {
+			response.setHeader(DJavaRequestHandler.TARGET_PROXY_ID_HEADER_NAME, String.valueOf(namedTarget.getId()));
+			response.setHeader(DJavaRequestHandler.METHOD_TABLE_FINGERPRINT_HEADER_NAME, String.valueOf(namedTarget.getMethodTableFingerprint()));
+		}
 		((PostalDJavaConnection) dJavaConnection).sendResponse(response);
 	}
 }